@@ -1,37 +1,83 @@
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class AddressData {
     AtomicBoolean personaNonGrata;
     IntervalList intervals;
-    LBCAHashTable<Boolean> cache;
+    final DecisionCache cache;
+    final AtomicInteger epoch;
     public static int HASH_TABLE_INITIAL_CAPACITY = 10;
     public static int HASH_TABLE_BUCKET_SIZE = 5;
+    public static int CACHE_TABLE_LOG_SIZE = 4;
+    public static int CACHE_TABLE_MAX_CAPACITY = 128;
+    public static int CACHE_CLOCK_LOG_SETS = 4;
+    public static final String CLOCK_CACHE = "clock";
+    public static String CACHE_TABLE_BACKEND = CLOCK_CACHE;
+    public static boolean INTERVAL_SNAPSHOT_READS = true;
 
     @SuppressWarnings("unchecked")
     public AddressData() {
         personaNonGrata = new AtomicBoolean();
-        intervals = new IntervalList();
-        cache = new LBCAHashTable<Boolean>(HASH_TABLE_INITIAL_CAPACITY, HASH_TABLE_BUCKET_SIZE);
+        intervals = new IntervalList(INTERVAL_SNAPSHOT_READS);
+        cache = newCache();
+        epoch = new AtomicInteger();
     }
 
+    /*
+     * The per-destination cache is a fixed-size CLOCK cache unless CACHE_TABLE_BACKEND
+     * names one of the HashTable backends.
+     */
+    static DecisionCache newCache() {
+        if (CLOCK_CACHE.equals(CACHE_TABLE_BACKEND)) {
+            return new ClockDecisionCache(CACHE_CLOCK_LOG_SETS);
+        }
+        return new TableDecisionCache(CACHE_TABLE_BACKEND, CACHE_TABLE_LOG_SIZE, CACHE_TABLE_MAX_CAPACITY);
+    }
+
+    /*
+     * Applies the config to the interval list and then bumps the epoch. Bumping after the
+     * update means a decision computed against a half-updated list carries the old epoch and
+     * is ignored from then on. A recorded PermissionUpdateEvent counts the list's boundaries
+     * before and after, which in hand-over-hand mode walks the list twice more.
+     */
     public void updatePermission(boolean personaNonGrata,
      boolean acceptingRange, int addressBegin, int addressEnd) {
-        clearCache();
+        PermissionUpdateEvent event = null;
+        if (PermissionUpdateEvent.TYPE.isEnabled()) {
+            event = new PermissionUpdateEvent();
+            event.lengthBefore = intervals.length();
+            event.begin();
+        }
         if (acceptingRange) {
             intervals.addInterval(addressBegin, addressEnd, this, personaNonGrata);
         } else {
             intervals.removeInterval(addressBegin, addressEnd, this, personaNonGrata);
         }
+        epoch.incrementAndGet();
+        if (event != null && event.shouldCommit()) {
+            event.acceptingRange = acceptingRange;
+            event.addressBegin = addressBegin;
+            event.addressEnd = addressEnd;
+            event.lengthAfter = intervals.length();
+            event.commit();
+        }
     }
 
-    public void clearCache() {
-        cache = new LBCAHashTable<Boolean>(HASH_TABLE_INITIAL_CAPACITY, HASH_TABLE_BUCKET_SIZE);
+    /*
+     * Cached decision for packets from `source` to this address under the current epoch.
+     */
+    public int lookupDecision(int source) {
+        return cache.lookup(source, epoch.get());
     }
 
-    public void addToCache(int key, Boolean value) {
-        cache.add(key, value);
-        if (cache.capacity > 128) {
-            clearCache();
-        }
+    /*
+     * Computes whether `source` may send to this address and caches the answer. The epoch is
+     * read before the interval list so a concurrent update can only make the entry stale.
+     */
+    public boolean decide(int source, AddressData sourceData) {
+        int myEpoch = epoch.get();
+        boolean allowed = intervals.contains(source, sourceData);
+        cache.record(source, allowed, myEpoch);
+        return allowed;
     }
 }
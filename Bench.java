@@ -0,0 +1,484 @@
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CyclicBarrier;
+
+class Bench {
+    /**
+     * Throughput benchmarks for the core data structures, run like JMH runs them: each case
+     * gets `bench.warmup` unmeasured and `bench.iterations` measured iterations of
+     * `bench.time` milliseconds, for every thread count in `bench.threads` the case supports.
+     * Every thread calls its operation in a loop and folds the results into a sink so the
+     * work cannot be optimized away.
+     *
+     * Alongside ops/ms each result reports the bytes allocated per operation by the measuring
+     * threads (what JMH's `-prof gc` calls gc.alloc.rate.norm) and the collections that ran
+     * during the measured iterations. Results go to stdout as a table and, with
+     * `-Dbench.out=<file>`, to a CSV or JSON file (`-Dbench.format=csv|json`) for comparing
+     * runs.
+     *
+     *   java Bench [case-name-prefix ...]     e.g. java Bench hashtable fingerprint
+     */
+    static final int WARMUP = Integer.getInteger("bench.warmup", 3);
+    static final int ITERATIONS = Integer.getInteger("bench.iterations", 5);
+    static final int TIME_MS = Integer.getInteger("bench.time", 500);
+    static final String THREADS = System.getProperty("bench.threads", "1,2,4");
+    static final String FORMAT = System.getProperty("bench.format", "csv");
+    static final String OUT = System.getProperty("bench.out");
+    static final int OPS_PER_CHECK = 256;
+
+    static final com.sun.management.ThreadMXBean THREAD_BEAN =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    // one operation of one thread; returns something to fold into the sink
+    interface Op {
+        long run();
+    }
+
+    abstract static class Case {
+        final String name;
+        final String params;
+        final int maxThreads;
+
+        Case(String name, String params, int maxThreads) {
+            this.name = name;
+            this.params = params;
+            this.maxThreads = maxThreads;
+        }
+
+        // builds the shared state and one operation per thread
+        abstract Op[] setup(int threads);
+    }
+
+    static class Result {
+        final Case c;
+        final int threads;
+        final double[] opsPerMs;
+        final double bytesPerOp;
+        final long gcCount;
+        final long gcMillis;
+
+        Result(Case c, int threads, double[] opsPerMs, double bytesPerOp, long gcCount, long gcMillis) {
+            this.c = c;
+            this.threads = threads;
+            this.opsPerMs = opsPerMs;
+            this.bytesPerOp = bytesPerOp;
+            this.gcCount = gcCount;
+            this.gcMillis = gcMillis;
+        }
+
+        double mean() {
+            double sum = 0;
+            for (double x : opsPerMs) {
+                sum += x;
+            }
+            return sum / opsPerMs.length;
+        }
+
+        double stddev() {
+            double mean = mean();
+            double sum = 0;
+            for (double x : opsPerMs) {
+                sum += (x - mean) * (x - mean);
+            }
+            return opsPerMs.length > 1 ? Math.sqrt(sum / (opsPerMs.length - 1)) : 0;
+        }
+    }
+
+    static volatile long sink;
+
+    public static void main(String[] args) throws Exception {
+        Locale.setDefault(Locale.ROOT);
+        List<Result> results = new ArrayList<>();
+        System.out.printf("%-22s %-34s %7s %14s %12s %12s %8s%n",
+            "benchmark", "params", "threads", "ops/ms", "+-", "bytes/op", "gcs");
+        for (Case c : cases()) {
+            if (!selected(c, args)) {
+                continue;
+            }
+            for (String t : THREADS.split(",")) {
+                int threads = Integer.parseInt(t.trim());
+                if (threads > c.maxThreads) {
+                    continue;
+                }
+                Result r = measure(c, threads);
+                results.add(r);
+                System.out.printf("%-22s %-34s %7d %14.1f %12.1f %12.1f %8d%n",
+                    c.name, c.params, threads, r.mean(), r.stddev(), r.bytesPerOp, r.gcCount);
+            }
+        }
+        if (OUT != null) {
+            write(results);
+        }
+    }
+
+    static boolean selected(Case c, String[] filters) {
+        if (filters.length == 0) {
+            return true;
+        }
+        for (String f : filters) {
+            if (c.name.startsWith(f)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static Result measure(Case c, int threads) throws Exception {
+        Op[] ops = c.setup(threads);
+        double[] opsPerMs = new double[ITERATIONS];
+        long measuredOps = 0;
+        long measuredBytes = 0;
+        long gcCount = 0;
+        long gcMillis = 0;
+        for (int i = 0; i < WARMUP + ITERATIONS; i++) {
+            long[] counts = new long[threads];
+            long[] bytes = new long[threads];
+            long gcCountBefore = gcCount();
+            long gcMillisBefore = gcMillis();
+            double elapsed = runIteration(ops, counts, bytes);
+            if (i < WARMUP) {
+                continue;
+            }
+            long total = 0;
+            for (int t = 0; t < threads; t++) {
+                total += counts[t];
+                measuredBytes += bytes[t];
+            }
+            measuredOps += total;
+            opsPerMs[i - WARMUP] = total / elapsed;
+            gcCount += gcCount() - gcCountBefore;
+            gcMillis += gcMillis() - gcMillisBefore;
+        }
+        return new Result(c, threads, opsPerMs, (double) measuredBytes / Math.max(1, measuredOps), gcCount, gcMillis);
+    }
+
+    // runs every op on its own thread for TIME_MS; returns the elapsed milliseconds
+    static double runIteration(Op[] ops, long[] counts, long[] bytes) throws Exception {
+        int threads = ops.length;
+        PaddedPrimitive<Boolean> stop = new PaddedPrimitive<Boolean>(false);
+        CyclicBarrier start = new CyclicBarrier(threads + 1);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int id = t;
+            workers[t] = new Thread(() -> {
+                Op op = ops[id];
+                long local = 0;
+                long n = 0;
+                long threadId = Thread.currentThread().getId();
+                try {
+                    start.await();
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+                long allocated = THREAD_BEAN.getThreadAllocatedBytes(threadId);
+                while (!stop.value) {
+                    for (int k = 0; k < OPS_PER_CHECK; k++) {
+                        local += op.run();
+                    }
+                    n += OPS_PER_CHECK;
+                }
+                bytes[id] = THREAD_BEAN.getThreadAllocatedBytes(threadId) - allocated;
+                counts[id] = n;
+                sink += local;
+            });
+            workers[t].start();
+        }
+        start.await();
+        StopWatch timer = new StopWatch();
+        timer.startTimer();
+        Thread.sleep(TIME_MS);
+        stop.value = true;
+        for (Thread w : workers) {
+            w.join();
+        }
+        timer.stopTimer();
+        return timer.getElapsedTime();
+    }
+
+    static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, gc.getCollectionTime());
+        }
+        return millis;
+    }
+
+    static void write(List<Result> results) throws IOException {
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(Paths.get(OUT)))) {
+            if (FORMAT.equals("json")) {
+                out.println("[");
+                for (int i = 0; i < results.size(); i++) {
+                    Result r = results.get(i);
+                    StringBuilder raw = new StringBuilder();
+                    for (double x : r.opsPerMs) {
+                        raw.append(raw.length() == 0 ? "" : ", ").append(String.format("%.3f", x));
+                    }
+                    out.printf("  {\"benchmark\": \"%s\", \"params\": \"%s\", \"threads\": %d, \"opsPerMs\": %.3f, "
+                        + "\"stddev\": %.3f, \"raw\": [%s], \"bytesPerOp\": %.3f, \"gcCount\": %d, \"gcMillis\": %d}%s%n",
+                        r.c.name, r.c.params, r.threads, r.mean(), r.stddev(), raw, r.bytesPerOp,
+                        r.gcCount, r.gcMillis, i + 1 < results.size() ? "," : "");
+                }
+                out.println("]");
+            } else {
+                out.println("benchmark,params,threads,ops_per_ms,stddev,bytes_per_op,gc_count,gc_millis");
+                for (Result r : results) {
+                    out.printf("%s,\"%s\",%d,%.3f,%.3f,%.3f,%d,%d%n", r.c.name, r.c.params, r.threads,
+                        r.mean(), r.stddev(), r.bytesPerOp, r.gcCount, r.gcMillis);
+                }
+            }
+        }
+    }
+
+    // xorshift step, for cheap per-thread randomness inside the ops
+    static int next(int x) {
+        x ^= x << 13;
+        x ^= x >>> 17;
+        return x ^ (x << 5);
+    }
+
+    static List<Case> cases() {
+        List<Case> cases = new ArrayList<>();
+        String[] backends = { "serial", HashTables.LBCA, HashTables.OPEN_ADDRESSING, HashTables.LOCK_FREE };
+        for (String backend : backends) {
+            for (double readRatio : new double[] { 0.5, 0.9, 0.99 }) {
+                cases.add(hashTable(backend, readRatio));
+            }
+        }
+        for (int length : new int[] { 16, 256, 4096 }) {
+            for (boolean snapshot : new boolean[] { false, true }) {
+                cases.add(intervalContains(length, snapshot));
+                cases.add(intervalUpdate(length, snapshot));
+            }
+        }
+        cases.add(waitFreeQueue(false));
+        cases.add(waitFreeQueue(true));
+        cases.add(ringQueue());
+        for (long iterations : new long[] { 100, 3822 }) {
+            for (boolean faithful : new boolean[] { true, false }) {
+                cases.add(fingerprint(iterations, faithful));
+            }
+        }
+        for (boolean fast : new boolean[] { false, true }) {
+            cases.add(generator(fast));
+        }
+        return cases;
+    }
+
+    static Case hashTable(String backend, double readRatio) {
+        final int logKeys = 12;
+        final int keyMask = (1 << logKeys) - 1;
+        // SerialHashTable is not thread safe, so it only runs single-threaded
+        int maxThreads = backend.equals("serial") ? 1 : Integer.MAX_VALUE;
+        return new Case("hashtable", "backend=" + backend + " reads=" + readRatio, maxThreads) {
+            Op[] setup(int threads) {
+                HashTable<Integer> table = backend.equals("serial")
+                    ? new SerialHashTable<Integer>(logKeys, AddressData.HASH_TABLE_BUCKET_SIZE)
+                    : HashTables.<Integer>create(backend, logKeys);
+                Integer[] values = new Integer[keyMask + 1];
+                for (int k = 0; k <= keyMask; k++) {
+                    values[k] = k;
+                    if ((k & 1) == 0) {
+                        table.add(k, values[k]);
+                    }
+                }
+                int readThreshold = (int) (readRatio * 1024);
+                Op[] ops = new Op[threads];
+                for (int t = 0; t < threads; t++) {
+                    final int seed = 0x9E3779B9 * (t + 1);
+                    ops[t] = new Op() {
+                        int x = seed;
+                        public long run() {
+                            x = next(x);
+                            int key = x & keyMask;
+                            if (((x >>> 20) & 1023) < readThreshold) {
+                                return table.contains(key) ? 1 : 0;
+                            }
+                            // writes toggle the key, which keeps the table about half full
+                            // (and never re-adds a present key, which SerialHashTable would duplicate)
+                            if (table.remove(key)) {
+                                return 1;
+                            }
+                            table.add(key, values[key]);
+                            return 0;
+                        }
+                    };
+                }
+                return ops;
+            }
+        };
+    }
+
+    // an interval list with about `length` boundaries: every other block of the space removed
+    static IntervalList intervalList(int length, boolean snapshot, AddressData sender) {
+        IntervalList list = new IntervalList(snapshot);
+        int blocks = Math.max(1, length / 2);
+        for (int i = 0; i < blocks; i++) {
+            list.removeInterval(i * 1024, i * 1024 + 511, sender, false);
+        }
+        return list;
+    }
+
+    static Case intervalContains(int length, boolean snapshot) {
+        return new Case("intervals.contains", "length=" + length + " snapshot=" + snapshot, Integer.MAX_VALUE) {
+            Op[] setup(int threads) {
+                AddressData sender = new AddressData();
+                IntervalList list = intervalList(length, snapshot, sender);
+                int span = Math.max(1, length / 2) * 1024;
+                Op[] ops = new Op[threads];
+                for (int t = 0; t < threads; t++) {
+                    final int seed = 0x9E3779B9 * (t + 1);
+                    ops[t] = new Op() {
+                        int x = seed;
+                        public long run() {
+                            x = next(x);
+                            return list.contains((x >>> 1) % span, sender) ? 1 : 0;
+                        }
+                    };
+                }
+                return ops;
+            }
+        };
+    }
+
+    static Case intervalUpdate(int length, boolean snapshot) {
+        return new Case("intervals.update", "length=" + length + " snapshot=" + snapshot, Integer.MAX_VALUE) {
+            Op[] setup(int threads) {
+                AddressData sender = new AddressData();
+                IntervalList list = intervalList(length, snapshot, sender);
+                int blocks = Math.max(1, length / 2);
+                Op[] ops = new Op[threads];
+                for (int t = 0; t < threads; t++) {
+                    final int seed = 0x9E3779B9 * (t + 1);
+                    // re-removes an already removed block or re-adds an already present one,
+                    // so the list keeps its length
+                    ops[t] = new Op() {
+                        int x = seed;
+                        public long run() {
+                            x = next(x);
+                            int block = (x >>> 1) % blocks;
+                            if ((x & 1) == 0) {
+                                list.removeInterval(block * 1024, block * 1024 + 511, sender, false);
+                            } else {
+                                list.addInterval(block * 1024 + 512, block * 1024 + 1023, sender, false);
+                            }
+                            return block;
+                        }
+                    };
+                }
+                return ops;
+            }
+        };
+    }
+
+    static Case waitFreeQueue(boolean pair) {
+        // single-threaded: an enqueue and a dequeue per op; pair: one producer, one consumer,
+        // each op one attempt (WaitFreeQueue only supports a single producer and consumer)
+        return new Case(pair ? "queue.waitfree.spsc" : "queue.waitfree", "capacity=50", pair ? 2 : 1) {
+            Op[] setup(int threads) {
+                WaitFreeQueue<Integer> queue = new WaitFreeQueue<Integer>(50);
+                Integer item = 42;
+                if (!pair || threads == 1) {
+                    return new Op[] { () -> {
+                        try {
+                            queue.enq(item);
+                            return queue.deq();
+                        } catch (FullException | EmptyException e) {
+                            return -1;
+                        }
+                    } };
+                }
+                return new Op[] { () -> {
+                    try {
+                        queue.enq(item);
+                        return 1;
+                    } catch (FullException e) {
+                        return 0;
+                    }
+                }, () -> {
+                    try {
+                        return queue.deq();
+                    } catch (EmptyException e) {
+                        return 0;
+                    }
+                } };
+            }
+        };
+    }
+
+    static Case ringQueue() {
+        // thread 0 consumes, the others produce; single-threaded it offers and polls
+        return new Case("queue.ring", "capacity=50", Integer.MAX_VALUE) {
+            Op[] setup(int threads) {
+                RingQueue<Integer> queue = new RingQueue<Integer>(50);
+                Integer item = 42;
+                Op[] ops = new Op[threads];
+                if (threads == 1) {
+                    ops[0] = () -> {
+                        queue.offer(item);
+                        Integer x = queue.poll();
+                        return x == null ? 0 : x;
+                    };
+                    return ops;
+                }
+                ops[0] = () -> {
+                    Integer x = queue.poll();
+                    return x == null ? 0 : x;
+                };
+                for (int t = 1; t < threads; t++) {
+                    ops[t] = () -> queue.offer(item) ? 1 : 0;
+                }
+                return ops;
+            }
+        };
+    }
+
+    static Case fingerprint(long iterations, boolean faithful) {
+        return new Case("fingerprint", "iterations=" + iterations + " faithful=" + faithful, Integer.MAX_VALUE) {
+            Op[] setup(int threads) {
+                Fingerprint.faithfulWork = faithful;
+                Op[] ops = new Op[threads];
+                for (int t = 0; t < threads; t++) {
+                    final int seed = 0x9E3779B9 * (t + 1);
+                    ops[t] = new Op() {
+                        int x = seed;
+                        public long run() {
+                            x = next(x);
+                            return Fingerprint.getFingerprint(iterations, x);
+                        }
+                    };
+                }
+                return ops;
+            }
+        };
+    }
+
+    static Case generator(boolean fast) {
+        // each thread runs its own generator with the parameters of the first sample mix
+        return new Case("generator.getPacket", "mix=1 fastExp=" + fast, Integer.MAX_VALUE) {
+            Op[] setup(int threads) {
+                Op[] ops = new Op[threads];
+                for (int t = 0; t < threads; t++) {
+                    PacketGenerator gen = new PacketGenerator(11, 12, 5, 1, 3, 3, 3822, 0.24d, 0.04d, 0.96d);
+                    gen.setFastExponential(fast);
+                    ops[t] = () -> gen.getPacket().type.ordinal();
+                }
+                return ops;
+            }
+        };
+    }
+}
@@ -0,0 +1,162 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+public interface DecisionCache {
+	/**
+	 * Remembers, for one destination, whether packets from a given source were allowed.
+	 * `lookup` returns MISS, DENY or ALLOW. Implementations are bounded: recording into a
+	 * full cache evicts something instead of growing.
+	 *
+	 * Every decision is tagged with the destination's permission epoch it was computed
+	 * under (see `AddressData.epoch`). A lookup under a different epoch is a MISS, and the
+	 * stale entry is simply overwritten by the next record, so invalidation never allocates.
+	 */
+	public static final int MISS = -1;
+	public static final int DENY = 0;
+	public static final int ALLOW = 1;
+
+	public int lookup(int source, int epoch);
+	public void record(int source, boolean allowed, int epoch);
+	public void clear();
+}
+
+
+
+class ClockDecisionCache implements DecisionCache {
+	/**
+	 * Fixed-size, set-associative decision cache. Every slot is a single `long` packing the
+	 * source id in the upper 32 bits and the VALID, ALLOW and REFERENCED bits plus the low
+	 * `EPOCH_BITS` of the epoch in the lower ones, so a reader gets a consistent entry from
+	 * one plain 64-bit load and never locks. (An entry could only be mistaken for current
+	 * after 2^29 further config updates to the same destination.)
+	 *
+	 * Each set of `WAYS` slots is evicted with CLOCK: lookups set the REFERENCED bit, and
+	 * `record` sweeps the set's hand past referenced slots (clearing the bit) until it finds
+	 * one to replace.
+	 *
+	 * Concurrent writers to the same set may overwrite each other's entries; that only
+	 * costs a later cache miss, never a wrong answer.
+	 */
+	static final int WAYS = 4;
+	private static final long VALID = 1L;
+	private static final long ALLOW_BIT = 2L;
+	private static final long REFERENCED = 4L;
+	private static final int EPOCH_SHIFT = 3;
+	private static final int EPOCH_BITS = 29;
+	private static final long EPOCH_MASK = ((1L << EPOCH_BITS) - 1) << EPOCH_SHIFT;
+	private static final VarHandle ENTRIES = MethodHandles.arrayElementVarHandle(long[].class);
+
+	private final long[] entries;
+	private final byte[] hands; // one clock hand per set, updated racily on purpose
+	private final int setMask;
+
+	public ClockDecisionCache(int logSets) {
+		this.entries = new long[WAYS << logSets];
+		this.hands = new byte[1 << logSets];
+		this.setMask = (1 << logSets) - 1;
+	}
+
+	private int setOf(int source) {
+		int h = source * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & setMask;
+	}
+
+	private static long pack(int source, boolean allowed, int epoch) {
+		return ((long) source << 32) | (((long) epoch << EPOCH_SHIFT) & EPOCH_MASK)
+			| VALID | REFERENCED | (allowed ? ALLOW_BIT : 0L);
+	}
+
+	private static boolean current(long entry, int epoch) {
+		return (entry & EPOCH_MASK) == (((long) epoch << EPOCH_SHIFT) & EPOCH_MASK);
+	}
+
+	private static boolean matches(long entry, int source) {
+		return (entry & VALID) != 0 && (int) (entry >>> 32) == source;
+	}
+
+	public int lookup(int source, int epoch) {
+		int base = setOf(source) * WAYS;
+		for (int way = 0; way < WAYS; way++) {
+			long entry = (long) ENTRIES.getOpaque(entries, base + way);
+			if (matches(entry, source)) {
+				if (!current(entry, epoch)) {
+					return MISS;
+				}
+				if ((entry & REFERENCED) == 0) {
+					ENTRIES.compareAndSet(entries, base + way, entry, entry | REFERENCED);
+				}
+				return (entry & ALLOW_BIT) != 0 ? ALLOW : DENY;
+			}
+		}
+		return MISS;
+	}
+
+	public void record(int source, boolean allowed, int epoch) {
+		int set = setOf(source);
+		int base = set * WAYS;
+		long entry = pack(source, allowed, epoch);
+		for (int way = 0; way < WAYS; way++) {
+			long old = (long) ENTRIES.getOpaque(entries, base + way);
+			if ((old & VALID) == 0 || matches(old, source)) {
+				ENTRIES.setOpaque(entries, base + way, entry);
+				return;
+			}
+		}
+		int hand = hands[set];
+		for (int step = 0; step < 2 * WAYS; step++) {
+			long old = (long) ENTRIES.getOpaque(entries, base + hand);
+			if ((old & REFERENCED) == 0) {
+				break;
+			}
+			ENTRIES.compareAndSet(entries, base + hand, old, old & ~REFERENCED);
+			hand = (hand + 1) & (WAYS - 1);
+		}
+		ENTRIES.setOpaque(entries, base + hand, entry);
+		hands[set] = (byte) ((hand + 1) & (WAYS - 1));
+	}
+
+	public void clear() {
+		for (int i = 0; i < entries.length; i++) {
+			ENTRIES.setOpaque(entries, i, 0L);
+		}
+	}
+}
+
+class TableDecisionCache implements DecisionCache {
+	/**
+	 * Decision cache on top of one of the HashTable backends (see `HashTables`). Values
+	 * pack the epoch and the decision as `epoch << 1 | allowed`. Once the table has grown
+	 * past `maxCapacity` it is thrown away and a fresh one takes its place.
+	 */
+	private final String backend;
+	private final int logSize;
+	private final int maxCapacity;
+	private volatile HashTable<Integer> table;
+
+	public TableDecisionCache(String backend, int logSize, int maxCapacity) {
+		this.backend = backend;
+		this.logSize = logSize;
+		this.maxCapacity = maxCapacity;
+		this.table = HashTables.create(backend, logSize);
+	}
+
+	public int lookup(int source, int epoch) {
+		Integer entry = table.get(source);
+		if (entry == null || (entry >>> 1) != (epoch & Integer.MAX_VALUE)) {
+			return MISS;
+		}
+		return (entry & 1) != 0 ? ALLOW : DENY;
+	}
+
+	public void record(int source, boolean allowed, int epoch) {
+		HashTable<Integer> myTable = table;
+		myTable.add(source, (epoch << 1) | (allowed ? 1 : 0));
+		if (myTable.capacity() > maxCapacity) {
+			clear();
+		}
+	}
+
+	public void clear() {
+		table = HashTables.create(backend, logSize);
+	}
+}
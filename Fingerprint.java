@@ -1,17 +1,164 @@
-
-
-
 // from java.util.Random
 class Fingerprint {
 	private final static long m = 0xFFFFFFFFFFFFL;
 	private final static long a = 25214903917L;
 	private final static long c = 11L;
 
+	/*
+	 * jumpMultiplier[k] and jumpIncrement[k] advance the generator by 2^k steps at once:
+	 * seed -> (jumpMultiplier[k] * seed + jumpIncrement[k]) & m.
+	 */
+	private final static long[] jumpMultiplier = new long[63];
+	private final static long[] jumpIncrement = new long[63];
+	static {
+		jumpMultiplier[0] = a;
+		jumpIncrement[0] = c;
+		for (int k = 1; k < jumpMultiplier.length; k++) {
+			jumpMultiplier[k] = (jumpMultiplier[k - 1] * jumpMultiplier[k - 1]) & m;
+			jumpIncrement[k] = (jumpMultiplier[k - 1] * jumpIncrement[k - 1] + jumpIncrement[k - 1]) & m;
+		}
+	}
+
+	/*
+	 * When set, getFingerprint runs the generator one step per iteration so that packets
+	 * cost the synthetic CPU work they describe. Otherwise it jumps ahead in O(log iterations).
+	 */
+	static boolean faithfulWork = Boolean.getBoolean("firewall.faithfulWork");
+
 	static long getFingerprint(long iterations, long startSeed) {
+		if (faithfulWork) {
+			return getFingerprintFaithful(iterations, startSeed);
+		}
+		return getFingerprintJump(iterations, startSeed);
+	}
+
+	static long getFingerprintFaithful(long iterations, long startSeed) {
 		long seed = startSeed;
 		for (long i = 0; i < iterations; i++) {
 			seed = (seed * a + c) & m;
 		}
 		return (seed >> 12) & 0xFFFFL;
 	}
+
+	/*
+	 * Same result as the loop: the step is affine mod 2^48, so `iterations` steps compose into
+	 * one step per set bit of `iterations`, using the precomputed powers of two.
+	 */
+	static long getFingerprintJump(long iterations, long startSeed) {
+		long seed = startSeed;
+		for (int k = 0; iterations > 0; k++, iterations >>>= 1) {
+			if ((iterations & 1) != 0) {
+				seed = (jumpMultiplier[k] * seed + jumpIncrement[k]) & m;
+			}
+		}
+		return (seed >> 12) & 0xFFFFL;
+	}
+
+	/*
+	 * Fingerprints count packets at once into `fingerprints`. In faithful mode the generator
+	 * steps of four packets are interleaved in one loop: the chains are independent, so the
+	 * core overlaps their multiplies instead of waiting on one chain at a time. A lane whose
+	 * packet finishes early is refilled with the next packet from the batch. The four lanes
+	 * live in locals, so the hot path allocates nothing.
+	 */
+	static void getFingerprints(long[] iterations, long[] seeds, long[] fingerprints, int count) {
+		if (!faithfulWork) {
+			for (int i = 0; i < count; i++) {
+				fingerprints[i] = getFingerprintJump(iterations[i], seeds[i]);
+			}
+			return;
+		}
+		// lane k works on packet pk, with rk steps left and seed sk; pk < 0 when it is idle
+		int p0 = -1, p1 = -1, p2 = -1, p3 = -1;
+		long r0 = 0, r1 = 0, r2 = 0, r3 = 0;
+		long s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+		int next = 0;
+		if (next < count) { p0 = next; r0 = Math.max(0, iterations[next]); s0 = seeds[next]; next++; }
+		if (next < count) { p1 = next; r1 = Math.max(0, iterations[next]); s1 = seeds[next]; next++; }
+		if (next < count) { p2 = next; r2 = Math.max(0, iterations[next]); s2 = seeds[next]; next++; }
+		if (next < count) { p3 = next; r3 = Math.max(0, iterations[next]); s3 = seeds[next]; next++; }
+		while (p0 >= 0 || p1 >= 0 || p2 >= 0 || p3 >= 0) {
+			long steps = Long.MAX_VALUE;
+			if (p0 >= 0) steps = Math.min(steps, r0);
+			if (p1 >= 0) steps = Math.min(steps, r1);
+			if (p2 >= 0) steps = Math.min(steps, r2);
+			if (p3 >= 0) steps = Math.min(steps, r3);
+			for (long i = 0; i < steps; i++) {
+				s0 = (s0 * a + c) & m;
+				s1 = (s1 * a + c) & m;
+				s2 = (s2 * a + c) & m;
+				s3 = (s3 * a + c) & m;
+			}
+			// finished lanes hand in their fingerprint and take the next packet
+			if (p0 >= 0 && (r0 -= steps) == 0) {
+				fingerprints[p0] = (s0 >> 12) & 0xFFFFL;
+				p0 = -1;
+				if (next < count) { p0 = next; r0 = Math.max(0, iterations[next]); s0 = seeds[next]; next++; }
+			}
+			if (p1 >= 0 && (r1 -= steps) == 0) {
+				fingerprints[p1] = (s1 >> 12) & 0xFFFFL;
+				p1 = -1;
+				if (next < count) { p1 = next; r1 = Math.max(0, iterations[next]); s1 = seeds[next]; next++; }
+			}
+			if (p2 >= 0 && (r2 -= steps) == 0) {
+				fingerprints[p2] = (s2 >> 12) & 0xFFFFL;
+				p2 = -1;
+				if (next < count) { p2 = next; r2 = Math.max(0, iterations[next]); s2 = seeds[next]; next++; }
+			}
+			if (p3 >= 0 && (r3 -= steps) == 0) {
+				fingerprints[p3] = (s3 >> 12) & 0xFFFFL;
+				p3 = -1;
+				if (next < count) { p3 = next; r3 = Math.max(0, iterations[next]); s3 = seeds[next]; next++; }
+			}
+		}
+	}
+}
+
+class FingerprintTest {
+	public static void main(String[] args) {
+		ExponentialGenerator expGen = new ExponentialGenerator(3000);
+		UniformGenerator uniGen = new UniformGenerator();
+		int mismatches = 0;
+		for (int i = 0; i < 20000; i++) {
+			long iterations = i < 64 ? i : expGen.getRand();
+			long seed = i % 3 == 0 ? uniGen.getRand() : ((long) uniGen.getRand() << 20) ^ uniGen.getRand();
+			long faithful = Fingerprint.getFingerprintFaithful(iterations, seed);
+			long jump = Fingerprint.getFingerprintJump(iterations, seed);
+			if (faithful != jump) {
+				System.out.println("mismatch: iterations " + iterations + " seed " + seed
+					+ " faithful " + faithful + " jump " + jump);
+				mismatches++;
+			}
+		}
+		for (long iterations = -2; iterations <= 0; iterations++) {
+			if (Fingerprint.getFingerprintFaithful(iterations, -12345L) != Fingerprint.getFingerprintJump(iterations, -12345L)) {
+				System.out.println("mismatch: iterations " + iterations);
+				mismatches++;
+			}
+		}
+		int count = 37;
+		long[] iterations = new long[count];
+		long[] seeds = new long[count];
+		long[] fingerprints = new long[count];
+		for (int i = 0; i < count; i++) {
+			iterations[i] = i % 5 == 0 ? 0 : expGen.getRand();
+			seeds[i] = uniGen.getRand();
+		}
+		boolean faithfulWork = Fingerprint.faithfulWork;
+		for (int mode = 0; mode < 2; mode++) {
+			Fingerprint.faithfulWork = mode == 0;
+			Fingerprint.getFingerprints(iterations, seeds, fingerprints, count);
+			for (int i = 0; i < count; i++) {
+				if (fingerprints[i] != Fingerprint.getFingerprintFaithful(iterations[i], seeds[i])) {
+					System.out.println("batch mismatch: faithful " + Fingerprint.faithfulWork + " packet " + i);
+					mismatches++;
+				}
+			}
+		}
+		Fingerprint.faithfulWork = faithfulWork;
+		System.out.println(mismatches == 0 ? "fingerprint modes agree" : mismatches + " mismatches");
+		if (mismatches != 0) {
+			System.exit(1);
+		}
+	}
 }
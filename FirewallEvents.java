@@ -0,0 +1,257 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Map;
+import java.util.TreeMap;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+class FirewallEvents {
+    /**
+     * Java Flight Recorder events for the firewall's slow paths, so that a recording of a
+     * running firewall shows what a throughput dip coincided with: a table resize, a config
+     * packet rewriting a long interval list, a stage stalled on full queues, slow cache
+     * misses or interval list walks that waited for locks. Every execution mode emits them:
+     * the packet queues, slot mode (firewall.packetRing) and work stealing (firewall.stealing),
+     * where only a dispatcher can stall, at its limit of packets in flight.
+     *
+     *   firewall.TableResize        an address table doubled its capacity
+     *   firewall.PermissionUpdate   a config packet applied to an address's interval list
+     *   firewall.QueueStall         a dispatcher or head worker could not hand off a packet
+     *   firewall.CacheMiss          a packet's round trip from a cache miss to its decision
+     *   firewall.IntervalTraversal  an interval list lookup or update, including its lock waits
+     *
+     * firewall.jfc enables them all, the frequent ones with a duration threshold, which is
+     * also how "long" interval list traversals are configured:
+     *
+     *   java -XX:StartFlightRecording=settings=default,settings=firewall.jfc,filename=fw.jfr ...
+     *
+     * Unrecorded events cost next to nothing: an event that is created, begun and committed
+     * in one method is removed by the JIT while it is disabled, and the events whose fields
+     * are expensive to fill in check their EventType first.
+     */
+    static final String CATEGORY = "Firewall";
+}
+
+@Name("firewall.TableResize")
+@Label("Address Table Resize")
+@Category(FirewallEvents.CATEGORY)
+@Description("An address table doubled its capacity; the duration includes waiting for its locks")
+class TableResizeEvent extends Event {
+    @Label("Table")
+    String table;
+
+    @Label("Old Capacity")
+    int oldCapacity;
+
+    @Label("New Capacity")
+    int newCapacity;
+}
+
+@Name("firewall.PermissionUpdate")
+@Label("Permission Update")
+@Category(FirewallEvents.CATEGORY)
+@Description("A config packet applied to the interval list of an address")
+@StackTrace(false)
+class PermissionUpdateEvent extends Event {
+    static final EventType TYPE = EventType.getEventType(PermissionUpdateEvent.class);
+
+    @Label("Accepting Range")
+    boolean acceptingRange;
+
+    @Label("Range Begin")
+    int addressBegin;
+
+    @Label("Range End")
+    int addressEnd;
+
+    @Label("Boundaries Before")
+    @Description("Boundaries in the interval list before the update, the two sentinels included")
+    int lengthBefore;
+
+    @Label("Boundaries After")
+    int lengthAfter;
+}
+
+@Name("firewall.QueueStall")
+@Label("Queue Stall")
+@Category(FirewallEvents.CATEGORY)
+@Description("A pipeline stage could not hand off a packet: every queue it offered to was full,"
+    + " or for a dispatcher the pipeline held its limit of packets in flight")
+@StackTrace(false)
+class QueueStallEvent extends Event {
+    static final EventType TYPE = EventType.getEventType(QueueStallEvent.class);
+    static final String DISPATCHER = "dispatcher";
+    static final String HEAD_WORKER = "head worker";
+
+    @Label("Stage")
+    String stage;
+
+    @Label("Idle Rounds")
+    @Description("How often the stage's wait strategy was called during the stall")
+    int idleRounds;
+
+    // a begun stall, or null while the event is disabled
+    static QueueStallEvent begin(String stage) {
+        if (!TYPE.isEnabled()) {
+            return null;
+        }
+        QueueStallEvent event = new QueueStallEvent();
+        event.stage = stage;
+        event.begin();
+        return event;
+    }
+
+    void end(int idleRounds) {
+        this.idleRounds = idleRounds;
+        commit();
+    }
+}
+
+@Name("firewall.CacheMiss")
+@Label("Cache Miss")
+@Category(FirewallEvents.CATEGORY)
+@Description("The round trip of a packet that missed the decision cache, from the head worker's"
+    + " miss to the cache-miss worker's decision")
+@StackTrace(false)
+class CacheMissEvent extends Event {
+    static final EventType TYPE = EventType.getEventType(CacheMissEvent.class);
+
+    @Label("Source")
+    int source;
+
+    @Label("Destination")
+    int dest;
+
+    @Label("Allowed")
+    boolean allowed;
+
+    @Label("Queued")
+    @Description("From the head worker's miss to the pickup by the cache-miss worker")
+    @Timespan(Timespan.NANOSECONDS)
+    long queued;
+
+    @Label("Decision")
+    @Description("From the pickup by the cache-miss worker to the decision")
+    @Timespan(Timespan.NANOSECONDS)
+    long decision;
+
+    /*
+     * The event of a packet that just missed the cache, begun by the head worker and carried
+     * on the packet to the cache-miss worker, which commits it; null while it is disabled.
+     */
+    static CacheMissEvent start() {
+        if (!TYPE.isEnabled()) {
+            return null;
+        }
+        CacheMissEvent event = new CacheMissEvent();
+        event.begin();
+        return event;
+    }
+
+    /*
+     * Fills in the packet and how its round trip splits up, given the head worker's miss
+     * stamp (0 if it missed before the event was enabled) and the cache-miss worker's pickup.
+     */
+    static void fill(CacheMissEvent event, int source, int dest, long missNanos, long pickupNanos) {
+        event.source = source;
+        event.dest = dest;
+        if (missNanos != 0) {
+            event.queued = pickupNanos - missNanos;
+        }
+        event.decision = System.nanoTime() - pickupNanos;
+    }
+}
+
+@Name("firewall.IntervalTraversal")
+@Label("Interval List Traversal")
+@Category(FirewallEvents.CATEGORY)
+@Description("A lookup in or an update of an interval list, including the time spent waiting for"
+    + " its locks; firewall.jfc records only those above a threshold")
+@StackTrace(false)
+class IntervalTraversalEvent extends Event {
+    static final String CONTAINS = "contains";
+    static final String ADD = "add";
+    static final String REMOVE = "remove";
+
+    @Label("Operation")
+    String operation;
+
+    @Label("Range Begin")
+    int start;
+
+    @Label("Range End")
+    int end;
+
+    @Label("Snapshot Reads")
+    boolean snapshotReads;
+}
+
+class FirewallEventsTest {
+    /*
+     * Records the firewall events with every threshold at zero while it grows each table
+     * backend and updates an interval list in both modes, then checks the recording.
+     */
+    public static void main(String[] args) throws Exception {
+        Path file = Files.createTempFile("firewall-events", ".jfr");
+        try (Recording recording = new Recording()) {
+            for (String name : new String[] { "firewall.TableResize", "firewall.PermissionUpdate",
+                "firewall.IntervalTraversal" }) {
+                recording.enable(name).withThreshold(Duration.ZERO);
+            }
+            recording.start();
+            for (String backend : new String[] { HashTables.LBCA, HashTables.OPEN_ADDRESSING, HashTables.LOCK_FREE }) {
+                HashTable<Integer> table = HashTables.create(backend, 2);
+                for (int i = 0; i < 1 << 12; i++) {
+                    table.add(i, i);
+                }
+            }
+            for (boolean snapshotReads : new boolean[] { false, true }) {
+                AddressData.INTERVAL_SNAPSHOT_READS = snapshotReads;
+                AddressData data = new AddressData();
+                data.updatePermission(false, false, 10, 20);
+                data.intervals.contains(15, data);
+            }
+            recording.stop();
+            recording.dump(file);
+        }
+        Map<String, Integer> counts = new TreeMap<>();
+        int failures = 0;
+        for (RecordedEvent event : RecordingFile.readAllEvents(file)) {
+            String name = event.getEventType().getName();
+            counts.merge(name + (name.equals("firewall.TableResize") ? " " + event.getString("table") : ""), 1, Integer::sum);
+            if (name.equals("firewall.PermissionUpdate")
+             && (event.getInt("lengthBefore") != 2 || event.getInt("lengthAfter") != 4)) {
+                System.out.println("wrong interval list lengths: " + event);
+                failures++;
+            }
+        }
+        Files.delete(file);
+        System.out.println(counts);
+        // two updates and the one hand-over-hand lookup; snapshot lookups are not recorded
+        String[] expected = { "firewall.TableResize lbca", "firewall.TableResize open",
+            "firewall.TableResize lockfree", "firewall.PermissionUpdate", "firewall.IntervalTraversal" };
+        int[] expectedCounts = { -1, -1, -1, 2, 3 };
+        for (int i = 0; i < expected.length; i++) {
+            Integer count = counts.get(expected[i]);
+            if (count == null || (expectedCounts[i] >= 0 && count != expectedCounts[i])) {
+                System.out.println("expected " + (expectedCounts[i] >= 0 ? expectedCounts[i] : "some")
+                    + " " + expected[i] + ", got " + count);
+                failures++;
+            }
+        }
+        System.out.println(failures == 0 ? "ok" : failures + " failures");
+        if (failures != 0) {
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,47 @@
+/**
+ * Live metrics of a running PipelineFirewall, registered as "firewall:type=Firewall" with
+ * -Dfirewall.jmx=true (see FirewallMetrics). Rates are in packets per millisecond over the
+ * last sampling period.
+ */
+public interface FirewallMXBean {
+    public long getPacketsProcessed();
+
+    public double getTotalRate();
+
+    // packets finished by head workers, and by cache-miss workers
+    public double getHeadRate();
+
+    public double getCacheMissRate();
+
+    public long getPacketsInFlight();
+
+    public int[] getHeadQueueDepths();
+
+    public int[] getCacheMissQueueDepths();
+
+    // decision cache lookups of the head workers
+    public long getCacheHits();
+
+    public long getCacheMisses();
+
+    public long getConfigPacketsApplied();
+
+    public String getAddressTableBackend();
+
+    public int getAddressTableCapacity();
+
+    public int getAddressTableResizes();
+
+    // lengths of the addresses' interval lists, in boundaries
+    public int getIntervalListsSampled();
+
+    public double getIntervalListLengthMean();
+
+    public long getIntervalListLengthP50();
+
+    public long getIntervalListLengthP90();
+
+    public long getIntervalListLengthP99();
+
+    public long getIntervalListLengthMax();
+}
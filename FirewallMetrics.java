@@ -0,0 +1,307 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+class FirewallMetrics implements FirewallMXBean, Runnable {
+    /**
+     * Live view of a running PipelineFirewall, for JMX (FirewallMXBean) and for a periodic
+     * reporter that prints a throughput time series to the console or as CSV.
+     *
+     * Everything is read from state the pipeline keeps anyway or from counters each worker
+     * owns (see WorkerStats), with opaque loads and no locks, so watching never slows the
+     * workers down. The sampling thread wakes every `periodMillis`, turns the processed
+     * counters into per-stage rates and, if it has an output, prints one line. It stops when
+     * `done` is set or, without waiting out the period, when it is interrupted.
+     *
+     * The interval list lengths are the one expensive metric: they are computed when asked
+     * for, over up to MAX_INTERVAL_SAMPLES addresses, and kept for INTERVAL_STATS_MILLIS.
+     */
+    static final String OBJECT_NAME = "firewall:type=Firewall";
+    static final String CONSOLE = "console";
+    static final String CSV = "csv";
+    static final int MAX_INTERVAL_SAMPLES = 1 << 16;
+    static final long INTERVAL_STATS_MILLIS = 1000;
+
+    final PaddedPrimitiveNonVolatile<Boolean> done;
+    final WorkerStats[] headStats;
+    final WorkerStats[] cacheMissStats;
+    final WorkerStats[] allStats;
+    final IntSupplier[] headQueueDepths;
+    final IntSupplier[] cacheMissQueueDepths;
+    final LongSupplier packetsInFlight;
+    final HashTable<AddressData> table;
+    final String tableBackend;
+    final int numAddresses;
+    final int periodMillis;
+    PrintStream out; // null: sample only
+    String format = CONSOLE;
+
+    // the last sample
+    private volatile double totalRate;
+    private volatile double headRate;
+    private volatile double cacheMissRate;
+
+    // the last interval list statistics, and when they were computed
+    private LatencyHistogram intervalLengths;
+    private long intervalLengthsMillis;
+
+    public FirewallMetrics(PaddedPrimitiveNonVolatile<Boolean> done,
+    WorkerStats[] headStats,
+    WorkerStats[] cacheMissStats,
+    IntSupplier[] headQueueDepths,
+    IntSupplier[] cacheMissQueueDepths,
+    LongSupplier packetsInFlight,
+    HashTable<AddressData> table,
+    String tableBackend,
+    int numAddresses,
+    int periodMillis) {
+        this.done = done;
+        this.headStats = headStats;
+        this.cacheMissStats = cacheMissStats;
+        this.allStats = WorkerStats.concat(headStats, cacheMissStats);
+        this.headQueueDepths = headQueueDepths;
+        this.cacheMissQueueDepths = cacheMissQueueDepths;
+        this.packetsInFlight = packetsInFlight;
+        this.table = table;
+        this.tableBackend = tableBackend;
+        this.numAddresses = numAddresses;
+        this.periodMillis = Math.max(1, periodMillis);
+    }
+
+    static IntSupplier[] depths(RingQueue<?>[] queues) {
+        IntSupplier[] depths = new IntSupplier[queues.length];
+        for (int i = 0; i < queues.length; i++) {
+            depths[i] = queues[i]::size;
+        }
+        return depths;
+    }
+
+    static IntSupplier[] depths(IntRingQueue[] queues) {
+        IntSupplier[] depths = new IntSupplier[queues.length];
+        for (int i = 0; i < queues.length; i++) {
+            depths[i] = queues[i]::size;
+        }
+        return depths;
+    }
+
+    /*
+     * Prints the time series to `out`, "console" lines or "csv" rows.
+     */
+    void setOutput(PrintStream out, String format) {
+        if (!format.equals(CONSOLE) && !format.equals(CSV)) {
+            throw new IllegalArgumentException("Unknown report format: " + format);
+        }
+        this.out = out;
+        this.format = format;
+    }
+
+    void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(this, new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            throw new IllegalStateException("Cannot register " + OBJECT_NAME, e);
+        }
+    }
+
+    void unregister() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (JMException ignore) {;}
+    }
+
+    @Override
+    public void run() {
+        long start = System.nanoTime();
+        long time = start;
+        long head = WorkerStats.totalProcessed(headStats);
+        long cacheMiss = WorkerStats.totalProcessed(cacheMissStats);
+        if (out != null && format.equals(CSV)) {
+            out.println("millis,pkts_per_ms,head_pkts_per_ms,cache_miss_pkts_per_ms,in_flight,"
+                + "head_queued,cache_miss_queued,cache_hits,cache_misses,configs");
+        }
+        while (!done.value) {
+            try {
+                Thread.sleep(periodMillis);
+            } catch (InterruptedException e) {
+                break; // the run is over, see PipelineFirewall
+            }
+            long now = System.nanoTime();
+            long nowHead = WorkerStats.totalProcessed(headStats);
+            long nowCacheMiss = WorkerStats.totalProcessed(cacheMissStats);
+            double millis = Math.max(1e-3, (now - time) / 1e6);
+            headRate = (nowHead - head) / millis;
+            cacheMissRate = (nowCacheMiss - cacheMiss) / millis;
+            totalRate = headRate + cacheMissRate;
+            head = nowHead;
+            cacheMiss = nowCacheMiss;
+            time = now;
+            if (out != null) {
+                print((now - start) / 1e6);
+            }
+        }
+        if (out == System.out) {
+            out.flush();
+        } else if (out != null) {
+            out.close();
+        }
+    }
+
+    private void print(double millis) {
+        long hits = getCacheHits();
+        long misses = getCacheMisses();
+        if (format.equals(CSV)) {
+            out.printf("%.1f,%.3f,%.3f,%.3f,%d,%d,%d,%d,%d,%d%n", millis, totalRate, headRate, cacheMissRate,
+                getPacketsInFlight(), sum(headQueueDepths), sum(cacheMissQueueDepths), hits, misses,
+                getConfigPacketsApplied());
+        } else {
+            out.printf("t=%.1fs %.1f pkts/ms (head %.1f, cache miss %.1f), %d in flight, queued %d + %d,"
+                + " cache hit ratio %.3f%n", millis / 1e3, totalRate, headRate, cacheMissRate,
+                getPacketsInFlight(), sum(headQueueDepths), sum(cacheMissQueueDepths),
+                hits + misses > 0 ? (double) hits / (hits + misses) : 0d);
+        }
+    }
+
+    private static int sum(IntSupplier[] depths) {
+        int total = 0;
+        for (IntSupplier depth : depths) {
+            total += depth.getAsInt();
+        }
+        return total;
+    }
+
+    private static int[] read(IntSupplier[] depths) {
+        int[] values = new int[depths.length];
+        for (int i = 0; i < depths.length; i++) {
+            values[i] = depths[i].getAsInt();
+        }
+        return values;
+    }
+
+    public long getPacketsProcessed() {
+        return WorkerStats.totalProcessed(allStats);
+    }
+
+    public double getTotalRate() {
+        return totalRate;
+    }
+
+    public double getHeadRate() {
+        return headRate;
+    }
+
+    public double getCacheMissRate() {
+        return cacheMissRate;
+    }
+
+    // the counters it is computed from are read one after the other, so clamp it
+    public long getPacketsInFlight() {
+        return Math.max(0, packetsInFlight.getAsLong());
+    }
+
+    public int[] getHeadQueueDepths() {
+        return read(headQueueDepths);
+    }
+
+    public int[] getCacheMissQueueDepths() {
+        return read(cacheMissQueueDepths);
+    }
+
+    public long getCacheHits() {
+        return WorkerStats.totalCacheHits(allStats);
+    }
+
+    public long getCacheMisses() {
+        return WorkerStats.totalCacheMisses(allStats);
+    }
+
+    public long getConfigPacketsApplied() {
+        return WorkerStats.totalConfigs(allStats);
+    }
+
+    public String getAddressTableBackend() {
+        return tableBackend;
+    }
+
+    public int getAddressTableCapacity() {
+        return table.capacity();
+    }
+
+    public int getAddressTableResizes() {
+        return table.resizes();
+    }
+
+    /*
+     * The distribution of interval list lengths over the addresses in the table, sampled
+     * with an even stride when there are more than MAX_INTERVAL_SAMPLES addresses.
+     */
+    private synchronized LatencyHistogram intervalLengths() {
+        long now = System.currentTimeMillis();
+        if (intervalLengths == null || now - intervalLengthsMillis >= INTERVAL_STATS_MILLIS) {
+            LatencyHistogram lengths = new LatencyHistogram();
+            int stride = Math.max(1, numAddresses / MAX_INTERVAL_SAMPLES);
+            for (int address = 0; address < numAddresses; address += stride) {
+                AddressData data = table.get(address);
+                if (data != null) {
+                    lengths.record(data.intervals.length());
+                }
+            }
+            intervalLengths = lengths;
+            intervalLengthsMillis = now;
+        }
+        return intervalLengths;
+    }
+
+    public int getIntervalListsSampled() {
+        return (int) intervalLengths().count;
+    }
+
+    public double getIntervalListLengthMean() {
+        return intervalLengths().mean();
+    }
+
+    public long getIntervalListLengthP50() {
+        return intervalLengths().percentile(50);
+    }
+
+    public long getIntervalListLengthP90() {
+        return intervalLengths().percentile(90);
+    }
+
+    public long getIntervalListLengthP99() {
+        return intervalLengths().percentile(99);
+    }
+
+    public long getIntervalListLengthMax() {
+        return intervalLengths().max;
+    }
+
+    // one line with the table and interval list metrics, for the end of a run
+    String tableReport() {
+        LatencyHistogram lengths = intervalLengths();
+        return String.format("address table: %s, capacity %d, %d resizes; interval lists of %d addresses:"
+            + " mean %.1f, p50 %d, p90 %d, p99 %d, max %d boundaries", tableBackend, table.capacity(),
+            table.resizes(), lengths.count, lengths.mean(), lengths.percentile(50), lengths.percentile(90),
+            lengths.percentile(99), lengths.max);
+    }
+
+    static PrintStream open(String path) {
+        if (path == null) {
+            return System.out;
+        }
+        try {
+            return new PrintStream(path);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Cannot write " + path, e);
+        }
+    }
+}
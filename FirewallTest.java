@@ -1,6 +1,7 @@
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicIntegerArray;
-
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
 
 
 class SerialFireWall {
@@ -17,7 +18,7 @@ class SerialFireWall {
         float acceptingFraction = Float.parseFloat(args[9]);
 
         StopWatch timer = new StopWatch();
-        PacketGenerator source = new PacketGenerator(numAddressLog,
+        PacketGenerator generator = new PacketGenerator(numAddressLog,
          numTrainsLog,
           meanTrainSize,
            meanTrainsPerComm,
@@ -27,9 +28,13 @@ class SerialFireWall {
                configFraction,
                 pngFraction,
                  acceptingFraction);
+        generator.setFastExponential(Boolean.getBoolean("firewall.fastExp"));
+        PacketSource source = PacketTrace.sourceFor(generator);
     
     PaddedPrimitiveNonVolatile<Boolean> done = new PaddedPrimitiveNonVolatile<Boolean>(false);
-    LBCAHashTable<AddressData> addressTable = new LBCAHashTable<AddressData>(10, 5);
+    AddressData.CACHE_TABLE_BACKEND = System.getProperty("firewall.cacheTable", AddressData.CLOCK_CACHE);
+    HashTable<AddressData> addressTable = HashTables.create(
+     System.getProperty("firewall.table", HashTables.OPEN_ADDRESSING), numAddressLog + 1);
     for (int i = 0; i < Math.pow(1 << numAddressLog, 1.5); i++) {
         Packet pkt = source.getConfigPacket();
         if (!addressTable.contains(pkt.config.address)) {
@@ -42,22 +47,42 @@ class SerialFireWall {
     SerialFireWallWorker workerData = new SerialFireWallWorker(done,
      source,
       addressTable);
+    // the serial firewall has a single stage and no queues, so only its service time is
+    // recorded; unlike the pipeline's "end to end" row it includes no queueing
+    StageLatency latency = null;
+    if (Boolean.getBoolean("firewall.latency")) {
+      latency = new StageLatency(System.nanoTime());
+      workerData.latency = latency.stages[StageLatency.SERVICE];
+    }
 
+    int numMilliseconds = Integer.getInteger("firewall.millis", 5000);
+    int warmupMilliseconds = Integer.getInteger("firewall.warmupMillis", 0);
     Thread workerThread = new Thread(workerData);
     workerThread.start();
+    // packets processed during the warmup are not counted
+    long warmupCount = 0;
+    if (warmupMilliseconds > 0) {
+      try {
+          Thread.sleep(warmupMilliseconds);
+        } catch (InterruptedException ignore) {;}
+      warmupCount = workerData.totalProcessedPackets;
+    }
     timer.startTimer();
     try {
-        Thread.sleep(5000);
+        Thread.sleep(numMilliseconds);
       } catch (InterruptedException ignore) {;}
     done.value = true;
     try {
     workerThread.join();
     } catch (InterruptedException ignore) {;}      
     timer.stopTimer();
-    final long totalCount = workerData.totalProcessedPackets;
+    final long totalCount = workerData.totalProcessedPackets - warmupCount;
     System.out.println("count: " + totalCount);
     System.out.println("time: " + timer.getElapsedTime());
     System.out.println(totalCount/timer.getElapsedTime() + " pkts / ms");
+    if (latency != null) {
+      System.out.println(latency.report());
+    }
 }
 }
 
@@ -75,13 +100,59 @@ class PipelineFirewall {
         float pngFraction = Float.parseFloat(args[8]);
         float acceptingFraction = Float.parseFloat(args[9]);
 
-        int numHeadWorkers = 8;
-        int numCacheMissWorkers = 4;
-        final int QUEUE_CAPACITY = 50;
-        int numMilliseconds = 5000;
+        int numHeadWorkers = Integer.getInteger("firewall.headWorkers", 8);
+        int numCacheMissWorkers = Integer.getInteger("firewall.cacheMissWorkers", 4);
+        final int QUEUE_CAPACITY = Integer.getInteger("firewall.queueCapacity", 50);
+        int numMilliseconds = Integer.getInteger("firewall.millis", 5000);
+        int warmupMilliseconds = Integer.getInteger("firewall.warmupMillis", 0);
+        int batchSize = Integer.getInteger("firewall.batchSize", 1);
+        int fingerprintBatchSize = Integer.getInteger("firewall.fingerprintBatch", 1);
+        boolean packetRing = Boolean.getBoolean("firewall.packetRing");
+        int numDispatchers = Integer.getInteger("firewall.dispatchers", 1);
+        if (numDispatchers < 1) {
+            throw new IllegalArgumentException("firewall.dispatchers must be at least 1");
+        }
+        boolean adaptive = Boolean.getBoolean("firewall.adaptive");
+        int controlMilliseconds = Integer.getInteger("firewall.controlMillis", 50);
+        boolean stealing = Boolean.getBoolean("firewall.stealing");
+        // per-stage latency histograms, see StageLatency
+        boolean recordLatency = Boolean.getBoolean("firewall.latency");
+        // open loop: offer this many pkts/ms on a fixed schedule, shared by the dispatchers, and
+        // measure latency from the intended send times (see OpenLoopSchedule); 0 is closed loop
+        double offeredRate = Double.parseDouble(System.getProperty("firewall.rate", "0"));
+        if (offeredRate > 0) {
+            recordLatency = true;
+        }
+        // live metrics: the FirewallMXBean and a time series every reportMillis, see FirewallMetrics
+        boolean jmx = Boolean.getBoolean("firewall.jmx");
+        int reportMilliseconds = Integer.getInteger("firewall.reportMillis", 0);
+        // platform or virtual stage threads, see StageThreads
+        String threadMode = System.getProperty("firewall.threads", StageThreads.PLATFORM);
+        int carriers = Integer.getInteger("firewall.carriers", 0);
+        // what each stage does when it finds no work, see WaitStrategy; virtual threads park
+        // by default so that idle stages leave their carrier to the busy ones
+        String defaultWait = threadMode.equals(StageThreads.VIRTUAL) ? WaitStrategy.PARK : WaitStrategy.SPIN;
+        String dispatcherWait = System.getProperty("firewall.wait.dispatcher", defaultWait);
+        String headWait = System.getProperty("firewall.wait.head", defaultWait);
+        String cacheMissWait = System.getProperty("firewall.wait.cacheMiss", defaultWait);
+        if (stealing && (packetRing || adaptive || numDispatchers > 1)) {
+            throw new IllegalArgumentException("firewall.stealing supports a single object-mode dispatcher only");
+        }
+        if (adaptive && (packetRing || numDispatchers > 1)) {
+            throw new IllegalArgumentException("firewall.adaptive supports a single object-mode dispatcher only");
+        }
+        if (packetRing && numDispatchers > 1) {
+            throw new IllegalArgumentException("firewall.packetRing supports a single dispatcher only");
+        }
+        if (offeredRate > 0 && packetRing) {
+            throw new IllegalArgumentException("firewall.rate supports object-mode dispatchers only");
+        }
+        if (System.getProperty("firewall.trace") != null && numDispatchers > 1) {
+            throw new IllegalArgumentException("firewall.trace supports a single dispatcher only");
+        }
 
         StopWatch timer = new StopWatch();
-        PacketGenerator source = new PacketGenerator(numAddressLog,
+        PacketGenerator generator = new PacketGenerator(numAddressLog,
          numTrainsLog,
           meanTrainSize,
            meanTrainsPerComm,
@@ -91,12 +162,18 @@ class PipelineFirewall {
                configFraction,
                 pngFraction,
                  acceptingFraction);
+        generator.setFastExponential(Boolean.getBoolean("firewall.fastExp"));
+        PacketSource source = PacketTrace.sourceFor(generator);
     
-    AtomicInteger totalProcessedPackets = new AtomicInteger(0);
-    AtomicInteger packetsInFlight = new AtomicInteger();
-    AtomicIntegerArray histogram = new AtomicIntegerArray(new int[1 << 16]);
+    // in adaptive mode every worker can play both roles and keeps stats for each of them
+    int numWorkers = numHeadWorkers + numCacheMissWorkers;
+    WorkerStats[] headWorkerStats = WorkerStats.create(adaptive ? numWorkers : numHeadWorkers);
+    WorkerStats[] cacheMissWorkerStats = WorkerStats.create(adaptive ? numWorkers : numCacheMissWorkers);
+    WorkerStats[] allWorkerStats = WorkerStats.concat(headWorkerStats, cacheMissWorkerStats);
     PaddedPrimitiveNonVolatile<Boolean> done = new PaddedPrimitiveNonVolatile<Boolean>(false);
-    LBCAHashTable<AddressData> addressTable = new LBCAHashTable<AddressData>(10, 5);
+    AddressData.CACHE_TABLE_BACKEND = System.getProperty("firewall.cacheTable", AddressData.CLOCK_CACHE);
+    String tableBackend = System.getProperty("firewall.table", HashTables.OPEN_ADDRESSING);
+    HashTable<AddressData> addressTable = HashTables.create(tableBackend, numAddressLog + 1);
     for (int i = 0; i < Math.pow(1 << numAddressLog, 1.5); i++) {
         Packet pkt = source.getConfigPacket();
         if (!addressTable.contains(pkt.config.address)) {
@@ -107,58 +184,249 @@ class PipelineFirewall {
           pkt.config.addressBegin, pkt.config.addressEnd);
     }
 
-    WaitFreeQueue<Packet>[] cacheMissWorkerQueues = new WaitFreeQueue[numCacheMissWorkers];
-    for (int i = 0; i < numCacheMissWorkers; i++) {
-        cacheMissWorkerQueues[i] = new WaitFreeQueue<Packet>(QUEUE_CAPACITY);
+    // what the live metrics watch, filled in by every mode below
+    IntSupplier[] headQueueDepths;
+    IntSupplier[] cacheMissQueueDepths;
+    LongSupplier packetsInFlight;
+    WorkerStats[] metricsHeadStats = headWorkerStats;
+    WorkerStats[] metricsCacheMissStats = cacheMissWorkerStats;
+    Runnable[] cacheMissWorkerData = new Runnable[numCacheMissWorkers];
+    Runnable[] headWorkerData = new Runnable[numHeadWorkers];
+    Runnable[] dispatcherData = new Runnable[numDispatchers];
+    OpenLoopSchedule[] schedules = new OpenLoopSchedule[offeredRate > 0 ? numDispatchers : 0];
+    PipelineController controller = null;
+    StealingPool stealingPool = null;
+    if (stealing) {
+      // one ForkJoinPool of numHeadWorkers + numCacheMissWorkers workers runs both stages
+      stealingPool = new StealingPool(done, addressTable, numWorkers);
+      headWorkerData = new Runnable[0];
+      cacheMissWorkerData = new Runnable[0];
+      allWorkerStats = stealingPool.stats;
+      // this dispatcher has always paused with onSpinWait while the pool is full
+      PoolDispatcher dispatcher = new PoolDispatcher(done, source, stealingPool);
+      dispatcher.setWaitStrategy(WaitStrategy.create(
+       System.getProperty("firewall.wait.dispatcher", WaitStrategy.ON_SPIN_WAIT)));
+      dispatcher.setStampPackets(recordLatency);
+      if (offeredRate > 0) {
+        schedules[0] = new OpenLoopSchedule(offeredRate);
+        dispatcher.setSchedule(schedules[0]);
       }
-
-      Thread[] cacheMissWorkerThreads = new Thread[numCacheMissWorkers];
+      dispatcherData[0] = dispatcher;
+      // the pool's workers run both stages, so all of their packets count as head packets
+      ForkJoinPool pool = stealingPool.pool;
+      headQueueDepths = new IntSupplier[] {
+       () -> (int) Math.min(Integer.MAX_VALUE, pool.getQueuedSubmissionCount() + pool.getQueuedTaskCount()) };
+      cacheMissQueueDepths = new IntSupplier[0];
+      packetsInFlight = dispatcher::packetsInFlight;
+      metricsHeadStats = stealingPool.stats;
+      metricsCacheMissStats = new WorkerStats[0];
+    } else if (packetRing) {
+      // every packet lives in a slot of one preallocated ring and the queues carry slot indices
+      PacketRing ring = new PacketRing(Dispatcher.MAX_PACKETS_IN_FLIGHT);
+      IntRingQueue[] cacheMissWorkerQueues = new IntRingQueue[numCacheMissWorkers];
       for (int i = 0; i < numCacheMissWorkers; i++) {
-        CacheMissWorker cacheMissWorkerData = new CacheMissWorker(done,
+        cacheMissWorkerQueues[i] = new IntRingQueue(QUEUE_CAPACITY);
+        SlotCacheMissWorker worker = new SlotCacheMissWorker(done, ring, cacheMissWorkerQueues[i],
+         addressTable, cacheMissWorkerStats[i]);
+        worker.setWaitStrategy(WaitStrategy.create(cacheMissWait));
+        cacheMissWorkerData[i] = worker;
+      }
+      IntRingQueue[] headWorkerQueues = new IntRingQueue[numHeadWorkers];
+      for (int i = 0; i < numHeadWorkers; i++) {
+        headWorkerQueues[i] = new IntRingQueue(QUEUE_CAPACITY);
+        SlotHeadWorker worker = new SlotHeadWorker(done, ring, headWorkerQueues[i],
+         addressTable, cacheMissWorkerQueues, headWorkerStats[i]);
+        worker.setWaitStrategy(WaitStrategy.create(headWait));
+        headWorkerData[i] = worker;
+      }
+      SlotDispatcher dispatcher = new SlotDispatcher(done, source, ring, headWorkerQueues);
+      dispatcher.setWaitStrategy(WaitStrategy.create(dispatcherWait));
+      dispatcher.setStampPackets(recordLatency);
+      dispatcherData[0] = dispatcher;
+      headQueueDepths = FirewallMetrics.depths(headWorkerQueues);
+      cacheMissQueueDepths = FirewallMetrics.depths(cacheMissWorkerQueues);
+      packetsInFlight = ring::inFlight;
+    } else if (adaptive) {
+      // the workers start in the configured roles (the first numHeadWorkers as head workers)
+      // and the controller moves them between roles; a head batch must fit into one queue
+      AdaptiveWorker[] workers = new AdaptiveWorker[numWorkers];
+      for (int i = 0; i < numWorkers; i++) {
+        RingQueue<Packet> headQueue = new RingQueue<Packet>(QUEUE_CAPACITY);
+        RingQueue<Packet> cacheMissQueue = new RingQueue<Packet>(QUEUE_CAPACITY);
+        workers[i] = new AdaptiveWorker(done,
+         new HeadWorker(done, headQueue, addressTable, RingQueue.<Packet>array(0), headWorkerStats[i],
+          Math.min(batchSize, cacheMissQueue.capacity()), fingerprintBatchSize),
+         new CacheMissWorker(done, cacheMissQueue, addressTable, cacheMissWorkerStats[i]),
+         i < numHeadWorkers ? AdaptiveWorker.HEAD : AdaptiveWorker.CACHE_MISS);
+        // a worker keeps the strategy of the role it starts in
+        workers[i].setWaitStrategy(WaitStrategy.create(i < numHeadWorkers ? headWait : cacheMissWait));
+        if (i < numHeadWorkers) {
+          headWorkerData[i] = workers[i];
+        } else {
+          cacheMissWorkerData[i - numHeadWorkers] = workers[i];
+        }
+      }
+      Dispatcher dispatcher = new Dispatcher(done, source, RingQueue.<Packet>array(0), allWorkerStats, batchSize);
+      dispatcher.setWaitStrategy(WaitStrategy.create(dispatcherWait));
+      dispatcher.setStampPackets(recordLatency);
+      if (offeredRate > 0) {
+        schedules[0] = new OpenLoopSchedule(offeredRate);
+        dispatcher.setSchedule(schedules[0]);
+      }
+      controller = new PipelineController(done, dispatcher, workers, headWorkerStats,
+       cacheMissWorkerStats, controlMilliseconds);
+      dispatcherData[0] = dispatcher;
+      // every worker's queues, whatever role it currently has
+      headQueueDepths = new IntSupplier[numWorkers];
+      cacheMissQueueDepths = new IntSupplier[numWorkers];
+      for (int i = 0; i < numWorkers; i++) {
+        headQueueDepths[i] = workers[i].head.myQueue::size;
+        cacheMissQueueDepths[i] = workers[i].cacheMiss.myQueue::size;
+      }
+      packetsInFlight = dispatcher::packetsInFlight;
+    } else {
+    RingQueue<Packet>[] cacheMissWorkerQueues = new RingQueue[numCacheMissWorkers];
+    for (int i = 0; i < numCacheMissWorkers; i++) {
+        cacheMissWorkerQueues[i] = new RingQueue<Packet>(QUEUE_CAPACITY);
+        CacheMissWorker worker = new CacheMissWorker(done,
         cacheMissWorkerQueues[i],
         addressTable,
-        histogram,
-        totalProcessedPackets,
-        packetsInFlight);
-        Thread cacheMissWorkerThread = new Thread(cacheMissWorkerData);
-        cacheMissWorkerThreads[i] = cacheMissWorkerThread;
-      }
-
-    WaitFreeQueue<Packet>[] headWorkerQueues = new WaitFreeQueue[numHeadWorkers];
-    for (int i = 0; i < numHeadWorkers; i++) {
-        headWorkerQueues[i] = new WaitFreeQueue<Packet>(QUEUE_CAPACITY);
+        cacheMissWorkerStats[i]);
+        worker.setWaitStrategy(WaitStrategy.create(cacheMissWait));
+        cacheMissWorkerData[i] = worker;
       }
 
-    Thread[] headWorkerThreads = new Thread[numHeadWorkers];
+    RingQueue<Packet>[] headWorkerQueues = new RingQueue[numHeadWorkers];
     for (int i = 0; i < numHeadWorkers; i++) {
-        HeadWorker headWorkerData = new HeadWorker(done,
+        headWorkerQueues[i] = new RingQueue<Packet>(QUEUE_CAPACITY);
+        HeadWorker worker = new HeadWorker(done,
          headWorkerQueues[i],
           addressTable,
-           totalProcessedPackets,
             cacheMissWorkerQueues,
-             histogram,
-             packetsInFlight);
-        Thread headWorkerThread = new Thread(headWorkerData);
-        headWorkerThreads[i] = headWorkerThread;
+             headWorkerStats[i],
+             batchSize,
+             fingerprintBatchSize);
+        worker.setWaitStrategy(WaitStrategy.create(headWait));
+        headWorkerData[i] = worker;
+    }
+
+    // with several dispatchers each one generates its own shard of the traffic and feeds
+    // its own subset of the head workers (all of them if there are fewer workers)
+    PacketSource[] sources = numDispatchers == 1
+     ? new PacketSource[] { source } : generator.split(numDispatchers);
+    PaddedCounter[] dispatched = PaddedCounter.create(numDispatchers);
+    for (int d = 0; d < numDispatchers; d++) {
+      RingQueue<Packet>[] queues = headWorkerQueues;
+      if (numHeadWorkers >= numDispatchers) {
+        queues = RingQueue.array((numHeadWorkers - d + numDispatchers - 1) / numDispatchers);
+        for (int i = d, j = 0; i < numHeadWorkers; i += numDispatchers, j++) {
+          queues[j] = headWorkerQueues[i];
+        }
+      }
+      Dispatcher dispatcher = new Dispatcher(done, sources[d], queues, allWorkerStats, batchSize,
+       dispatched, d);
+      dispatcher.setWaitStrategy(WaitStrategy.create(dispatcherWait));
+      dispatcher.setStampPackets(recordLatency);
+      if (offeredRate > 0) {
+        schedules[d] = new OpenLoopSchedule(offeredRate / numDispatchers);
+        dispatcher.setSchedule(schedules[d]);
+      }
+      dispatcherData[d] = dispatcher;
+    }
+    headQueueDepths = FirewallMetrics.depths(headWorkerQueues);
+    cacheMissQueueDepths = FirewallMetrics.depths(cacheMissWorkerQueues);
+    packetsInFlight = ((Dispatcher) dispatcherData[0])::packetsInFlight; // the same for every dispatcher
+    }
+
+    if (recordLatency) {
+      WorkerStats.enableLatency(allWorkerStats, System.nanoTime() + warmupMilliseconds * 1_000_000L);
     }
 
-    Dispatcher dispatcherData = new Dispatcher(done, source, headWorkerQueues, packetsInFlight);
-    Thread dispatcherThread = new Thread(dispatcherData);
+    // every stage thread records its CPU time
+    ThreadFactory threads = StageThreads.factory(threadMode, carriers);
+    CpuTimer[] cacheMissWorkerTimers = CpuTimer.wrap(cacheMissWorkerData);
+    CpuTimer[] headWorkerTimers = CpuTimer.wrap(headWorkerData);
+    CpuTimer[] dispatcherTimers = CpuTimer.wrap(dispatcherData);
+    Thread[] cacheMissWorkerThreads = new Thread[cacheMissWorkerData.length];
+    for (int i = 0; i < cacheMissWorkerData.length; i++) {
+        cacheMissWorkerThreads[i] = threads.newThread(cacheMissWorkerTimers[i]);
+    }
+    Thread[] headWorkerThreads = new Thread[headWorkerData.length];
+    for (int i = 0; i < headWorkerData.length; i++) {
+        headWorkerThreads[i] = threads.newThread(headWorkerTimers[i]);
+    }
+    Thread[] dispatcherThreads = new Thread[numDispatchers];
+    for (int i = 0; i < numDispatchers; i++) {
+        dispatcherThreads[i] = threads.newThread(dispatcherTimers[i]);
+    }
     for (Thread thread : cacheMissWorkerThreads) {
         thread.start();
     }
     for (Thread thread : headWorkerThreads) {
         thread.start();
     }
+    // the MBean server starts up outside the timed window
+    FirewallMetrics metrics = null;
+    Thread metricsThread = null;
+    if (jmx || reportMilliseconds > 0) {
+        metrics = new FirewallMetrics(done, metricsHeadStats, metricsCacheMissStats, headQueueDepths,
+         cacheMissQueueDepths, packetsInFlight, addressTable, tableBackend, 1 << numAddressLog,
+          reportMilliseconds > 0 ? reportMilliseconds : 100);
+        if (reportMilliseconds > 0) {
+            metrics.setOutput(FirewallMetrics.open(System.getProperty("firewall.reportOut")),
+             System.getProperty("firewall.reportFormat", FirewallMetrics.CONSOLE));
+        }
+        if (jmx) {
+            metrics.register();
+        }
+        metricsThread = new Thread(metrics);
+        metricsThread.setDaemon(true);
+    }
     timer.startTimer();
-    dispatcherThread.start();
+    for (Thread thread : dispatcherThreads) {
+        thread.start();
+    }
+    if (metricsThread != null) {
+        metricsThread.start();
+    }
+    Thread controllerThread = controller == null ? null : new Thread(controller);
+    if (controllerThread != null) {
+        controllerThread.start();
+    }
+    // packets processed during the warmup are not counted
+    long warmupCount = 0;
+    if (warmupMilliseconds > 0) {
+        try {
+            Thread.sleep(warmupMilliseconds);
+        } catch (InterruptedException ignore) {;}
+        warmupCount = WorkerStats.totalProcessed(allWorkerStats);
+        timer.startTimer();
+    }
     try {
         Thread.sleep(numMilliseconds);
     } catch (InterruptedException ignore) {;}
     done.value = true;
-    try {
-        dispatcherThread.join();
-    } catch (InterruptedException ignore) {;}
+    if (metricsThread != null) {
+        metricsThread.interrupt(); // rather than waiting out its report period
+    }
+    for (Thread thread : dispatcherThreads) {
+        try {
+            thread.join();
+        } catch (InterruptedException ignore) {;}
+    }
+    if (controllerThread != null) {
+        try {
+            controllerThread.join();
+        } catch (InterruptedException ignore) {;}
+    }
+    if (metricsThread != null) {
+        try {
+            metricsThread.join();
+        } catch (InterruptedException ignore) {;}
+    }
+    if (stealingPool != null) {
+        stealingPool.shutdown();
+    }
 
     for (Thread thread: headWorkerThreads) {
         try {
@@ -171,9 +439,37 @@ class PipelineFirewall {
         } catch (InterruptedException ignore) {;}
     }
     timer.stopTimer();
-    final long totalCount = totalProcessedPackets.get();
+    final long totalCount = WorkerStats.totalProcessed(allWorkerStats) - warmupCount;
     System.out.println("count: " + totalCount);
     System.out.println("time: " + timer.getElapsedTime());
     System.out.println(totalCount/timer.getElapsedTime() + " pkts / ms");
+    if (schedules.length > 0) {
+        double lag = 0;
+        for (OpenLoopSchedule schedule : schedules) {
+            lag = Math.max(lag, schedule.lagMillis());
+        }
+        System.out.printf("offered: %.1f pkts / ms, behind schedule by %.1f ms at the end%n", offeredRate, lag);
+    }
+    if (controller != null) {
+        System.out.println(controller.report());
+    }
+    // CPU time of the whole run, warmup included
+    if (stealingPool != null) {
+        System.out.println("cpu: " + CpuTimer.report("dispatchers", dispatcherTimers) + ", "
+         + CpuTimer.report("pool workers", stealingPool.cpuNanos(), stealingPool.wallNanos()));
+    } else {
+        System.out.println("cpu: " + CpuTimer.report("dispatchers", dispatcherTimers) + ", "
+         + CpuTimer.report("head workers", headWorkerTimers) + ", "
+         + CpuTimer.report("cache-miss workers", cacheMissWorkerTimers));
+    }
+    System.out.println("cpu: " + CpuTimer.processReport());
+    // unlike the CPU time, latencies leave out packets completed during the warmup
+    if (recordLatency) {
+        System.out.println(StageLatency.merge(allWorkerStats).report());
+    }
+    if (metrics != null) {
+        System.out.println(metrics.tableReport());
+        metrics.unregister();
+    }
 }
 }
\ No newline at end of file
@@ -1,12 +1,18 @@
 import java.util.concurrent.atomic.*;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.ThreadLocalRandom;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 
 public interface HashTable<T> {
 	public void add(int key, T x);
 	public boolean remove(int key);
 	public boolean contains(int key);
+	public T get(int key);
+	public int capacity();
+	public int resizes(); // how many times the table has grown, for monitoring
 }
 
 
@@ -22,6 +28,7 @@ class LBCAHashTable<T> implements HashTable<T> {
 	private SerialList<T, Integer>[] table;
 	private final int maxBucketSize;
 	public int capacity;
+	private volatile int resizes; // written under all write locks
 
 	@SuppressWarnings("unchecked")
 	public LBCAHashTable(int capacity, int maxBucketSize) {
@@ -57,12 +64,15 @@ class LBCAHashTable<T> implements HashTable<T> {
 	@SuppressWarnings("unchecked")
 	public void resize() {
 		int oldCapacity = table.length;
+		TableResizeEvent event = new TableResizeEvent();
+		event.begin();
 		acquireAllWriteLocks();
 		try {
 			if (oldCapacity != table.length) {
 				return; //Some thread already resized the table
 			}
 			capacity = 2 * oldCapacity;
+			resizes++;
 			SerialList<T,Integer>[] oldTable = table;
 			table = new SerialList[capacity];
 			for (int i = 0; i < capacity; i++) {
@@ -79,6 +89,12 @@ class LBCAHashTable<T> implements HashTable<T> {
 	} finally {
 		releaseAllWriteLocks();
 	}
+	if (event.shouldCommit()) {
+		event.table = HashTables.LBCA;
+		event.oldCapacity = oldCapacity;
+		event.newCapacity = 2 * oldCapacity;
+		event.commit();
+	}
 }
 
 	private void addNoCheck(int key, T x) {
@@ -150,6 +166,14 @@ class LBCAHashTable<T> implements HashTable<T> {
     }
 
 
+	public int capacity() {
+		return capacity;
+	}
+
+	public int resizes() {
+		return resizes;
+	}
+
 	public int hashFunction(Integer key) {
 		return key.hashCode() % readWriteLocks.length;
 	}
@@ -196,6 +220,7 @@ class SerialHashTable<T> implements HashTable<T> {
 	private int logSize;
 	private int mask;
 	private final int maxBucketSize;
+	private int resizes;
 	@SuppressWarnings("unchecked")
 	public SerialHashTable(int logSize, int maxBucketSize) {
 		this.logSize = logSize;
@@ -234,8 +259,18 @@ class SerialHashTable<T> implements HashTable<T> {
 		else
 			return false;
 	}
+	public T get(int key) {
+		SerialList<T,Integer>[] myTable = table;
+		int myMask = myTable.length - 1;
+		if( myTable[key & myMask] == null )
+			return null;
+		SerialList<T,Integer>.Iterator<T,Integer> iterator = myTable[key & myMask].getItem(key);
+		return iterator == null ? null : iterator.getItem();
+	}
 	@SuppressWarnings("unchecked")
 	public void resize() {
+		TableResizeEvent event = new TableResizeEvent();
+		event.begin();
 		SerialList<T,Integer>[] newTable = new SerialList[2*table.length];
 		for( int i = 0; i < table.length; i++ ) {
 			if( table[i] == null )
@@ -252,6 +287,19 @@ class SerialHashTable<T> implements HashTable<T> {
 		table = newTable;
 		logSize++;
 		mask = (1 << logSize) - 1;
+		resizes++;
+		if (event.shouldCommit()) {
+			event.table = "serial";
+			event.oldCapacity = table.length / 2;
+			event.newCapacity = table.length;
+			event.commit();
+		}
+	}
+	public int capacity() {
+		return table.length;
+	}
+	public int resizes() {
+		return resizes;
 	}
 	public void printTable() {
 		for( int i = 0; i <= mask; i++ ) {
@@ -262,6 +310,450 @@ class SerialHashTable<T> implements HashTable<T> {
 	}
 }
 
+class OpenAddressHashTable<T> implements HashTable<T> {
+	/**
+	 * Open addressing hash table keyed directly by `int`, with linear probing over a
+	 * power-of-two `int[]` key array and a parallel values array. Writers are serialized
+	 * by a single lock (new addresses are rare compared to lookups), readers take no locks.
+	 *
+	 * A slot is published by writing its key and then release-storing its value, so a reader
+	 * that acquire-loads a non-null value also sees the matching key. Removed slots keep
+	 * their key and hold `TOMBSTONE` so that probe chains stay intact. A tombstone is never
+	 * reused in place: a reader could pair the old value it loaded with the new key, so only
+	 * `resize` reclaims tombstones. The table doubles once it is half full (tombstones
+	 * included) by building a new `Slots` and swapping it in.
+	 */
+	private static final Object TOMBSTONE = new Object();
+	private static final VarHandle VALUES = MethodHandles.arrayElementVarHandle(Object[].class);
+
+	private static final class Slots {
+		final int[] keys;
+		final Object[] values;
+		final int mask;
+		int used; // live entries plus tombstones, guarded by the writer lock
+
+		Slots(int logSize) {
+			this.keys = new int[1 << logSize];
+			this.values = new Object[1 << logSize];
+			this.mask = (1 << logSize) - 1;
+		}
+	}
+
+	private volatile Slots slots;
+	private final ReentrantLock writeLock = new ReentrantLock();
+	private volatile int resizes; // written under the writer lock
+
+	public OpenAddressHashTable(int logSize) {
+		this.slots = new Slots(logSize);
+	}
+
+	private static int hash(int key) {
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	@SuppressWarnings("unchecked")
+	public T get(int key) {
+		Slots s = slots;
+		int index = hash(key) & s.mask;
+		while (true) {
+			Object value = VALUES.getAcquire(s.values, index);
+			if (value == null) {
+				return null;
+			}
+			if (s.keys[index] == key && value != TOMBSTONE) {
+				return (T) value;
+			}
+			index = (index + 1) & s.mask;
+		}
+	}
+
+	public boolean contains(int key) {
+		return get(key) != null;
+	}
+
+	public void add(int key, T x) {
+		writeLock.lock();
+		try {
+			Slots s = slots;
+			int index = hash(key) & s.mask;
+			Object value;
+			while ((value = s.values[index]) != null) {
+				if (value != TOMBSTONE && s.keys[index] == key) {
+					VALUES.setRelease(s.values, index, x);
+					return;
+				}
+				index = (index + 1) & s.mask;
+			}
+			if (2 * (s.used + 1) > s.keys.length) {
+				s = resize(s);
+				index = hash(key) & s.mask;
+				while (s.values[index] != null) {
+					index = (index + 1) & s.mask;
+				}
+			}
+			s.keys[index] = key;
+			VALUES.setRelease(s.values, index, x);
+			s.used++;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	public boolean remove(int key) {
+		writeLock.lock();
+		try {
+			Slots s = slots;
+			int index = hash(key) & s.mask;
+			Object value;
+			while ((value = s.values[index]) != null) {
+				if (value != TOMBSTONE && s.keys[index] == key) {
+					VALUES.setRelease(s.values, index, TOMBSTONE);
+					return true;
+				}
+				index = (index + 1) & s.mask;
+			}
+			return false;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/*
+	 * Rehashes the live entries of `old` into a new table and publishes it. The new table is
+	 * twice as large, unless `old` is mostly tombstones: then it keeps its size, so a table
+	 * whose keys come and go does not grow without bound.
+	 * Readers still probing `old` keep seeing a consistent (if slightly stale) table.
+	 */
+	private Slots resize(Slots old) {
+		TableResizeEvent event = new TableResizeEvent();
+		event.begin();
+		int live = 0;
+		for (int i = 0; i < old.keys.length; i++) {
+			if (old.values[i] != null && old.values[i] != TOMBSTONE) {
+				live++;
+			}
+		}
+		boolean grow = 4 * (live + 1) > old.keys.length;
+		int logSize = Integer.numberOfTrailingZeros(old.keys.length) + (grow ? 1 : 0);
+		Slots s = new Slots(logSize);
+		for (int i = 0; i < old.keys.length; i++) {
+			Object value = old.values[i];
+			if (value == null || value == TOMBSTONE) {
+				continue;
+			}
+			int index = hash(old.keys[i]) & s.mask;
+			while (s.values[index] != null) {
+				index = (index + 1) & s.mask;
+			}
+			s.keys[index] = old.keys[i];
+			s.values[index] = value;
+			s.used++;
+		}
+		slots = s;
+		if (!grow) {
+			return s;
+		}
+		resizes++;
+		if (event.shouldCommit()) {
+			event.table = HashTables.OPEN_ADDRESSING;
+			event.oldCapacity = old.keys.length;
+			event.newCapacity = s.keys.length;
+			event.commit();
+		}
+		return s;
+	}
+
+	public int capacity() {
+		return slots.keys.length;
+	}
+
+	public int resizes() {
+		return resizes;
+	}
+}
+
+class LockFreeHashTable<T> implements HashTable<T> {
+	/**
+	 * Lock-free, incrementally resizable hash table following the split-ordered list design
+	 * from the textbook (section 13.3.3). All entries live in one lock-free linked list sorted
+	 * by the bit-reversed hash, and buckets are just shortcuts (sentinel nodes) into that list.
+	 * Growing the table only doubles `bucketCount`; new buckets are spliced in lazily by
+	 * whichever thread first touches them, so there is never a stop-the-world rehash.
+	 *
+	 * Bucket pointers live in lazily allocated segments of `SEGMENT_SIZE`; growing only copies
+	 * the small directory of segment pointers, never the buckets. Since `hash` is a bijection on int, two keys share a
+	 * split-order key only if they are equal.
+	 */
+	private static final int SEGMENT_LOG = 6;
+	private static final int SEGMENT_SIZE = 1 << SEGMENT_LOG;
+	private static final int MAX_LOG_BUCKETS = 26;
+	private static final int THRESHOLD = 4; // mean entries per bucket before doubling
+
+	private static final class Node<T> {
+		final long order;
+		final int key;
+		volatile T value;
+		final AtomicMarkableReference<Node<T>> next;
+
+		Node(long order, int key, T value, Node<T> next) {
+			this.order = order;
+			this.key = key;
+			this.value = value;
+			this.next = new AtomicMarkableReference<Node<T>>(next, false);
+		}
+	}
+
+	private final AtomicReference<AtomicReferenceArray<AtomicReferenceArray<Node<T>>>> directory;
+	private final AtomicInteger bucketCount;
+	private final AtomicInteger count = new AtomicInteger();
+	private final int initialLogBuckets;
+
+	public LockFreeHashTable(int logSize) {
+		int log = Math.min(Math.max(logSize, 1), MAX_LOG_BUCKETS);
+		this.directory = new AtomicReference<AtomicReferenceArray<AtomicReferenceArray<Node<T>>>>(
+			new AtomicReferenceArray<AtomicReferenceArray<Node<T>>>(1 + ((1 << log) >>> SEGMENT_LOG)));
+		this.bucketCount = new AtomicInteger(1 << log);
+		this.initialLogBuckets = log;
+		Node<T> head = new Node<T>(sentinelOrder(0), 0, null, null);
+		segment(0).set(0, head);
+	}
+
+	private static int hash(int key) {
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	private static long regularOrder(int hash) {
+		return ((Integer.reverse(hash) & 0xFFFFFFFFL) << 1) | 1L;
+	}
+
+	private static long sentinelOrder(int bucket) {
+		return (Integer.reverse(bucket) & 0xFFFFFFFFL) << 1;
+	}
+
+	private AtomicReferenceArray<Node<T>> segment(int bucket) {
+		int index = bucket >>> SEGMENT_LOG;
+		AtomicReferenceArray<AtomicReferenceArray<Node<T>>> segments = directory.get();
+		if (index >= segments.length()) {
+			segments = growDirectory(segments, index);
+		}
+		AtomicReferenceArray<Node<T>> segment = segments.get(index);
+		if (segment == null) {
+			segments.compareAndSet(index, null, new AtomicReferenceArray<Node<T>>(SEGMENT_SIZE));
+			segment = segments.get(index);
+		}
+		return segment;
+	}
+
+	/*
+	 * Copies the segment pointers into a directory large enough for `index`. A segment
+	 * installed into the old directory after the copy is simply lost; its sentinels are
+	 * still in the list and get found again by initializeBucket.
+	 */
+	private AtomicReferenceArray<AtomicReferenceArray<Node<T>>> growDirectory(
+			AtomicReferenceArray<AtomicReferenceArray<Node<T>>> old, int index) {
+		while (true) {
+			AtomicReferenceArray<AtomicReferenceArray<Node<T>>> grown =
+				new AtomicReferenceArray<AtomicReferenceArray<Node<T>>>(Integer.highestOneBit(index) << 1);
+			for (int i = 0; i < old.length(); i++) {
+				grown.set(i, old.get(i));
+			}
+			if (directory.compareAndSet(old, grown)) {
+				return grown;
+			}
+			old = directory.get();
+			if (index < old.length()) {
+				return old;
+			}
+		}
+	}
+
+	private Node<T> getBucket(int bucket) {
+		AtomicReferenceArray<Node<T>> segment = segment(bucket);
+		Node<T> sentinel = segment.get(bucket & (SEGMENT_SIZE - 1));
+		if (sentinel == null) {
+			sentinel = initializeBucket(bucket);
+		}
+		return sentinel;
+	}
+
+	/*
+	 * Splices the sentinel for `bucket` into the list, starting the search at its parent
+	 * bucket (the same index with the most significant bit cleared).
+	 */
+	private Node<T> initializeBucket(int bucket) {
+		int parent = bucket & ~Integer.highestOneBit(bucket);
+		Node<T> parentSentinel = getBucket(parent);
+		long order = sentinelOrder(bucket);
+		Node<T> sentinel;
+		while (true) {
+			Window<T> window = find(parentSentinel, order);
+			if (window.curr != null && window.curr.order == order) {
+				sentinel = window.curr; // somebody else got there first
+				break;
+			}
+			Node<T> node = new Node<T>(order, 0, null, window.curr);
+			if (window.pred.next.compareAndSet(window.curr, node, false, false)) {
+				sentinel = node;
+				break;
+			}
+		}
+		segment(bucket).compareAndSet(bucket & (SEGMENT_SIZE - 1), null, sentinel);
+		return sentinel;
+	}
+
+	private static final class Window<T> {
+		final Node<T> pred;
+		final Node<T> curr;
+
+		Window(Node<T> pred, Node<T> curr) {
+			this.pred = pred;
+			this.curr = curr;
+		}
+	}
+
+	/*
+	 * Harris-Michael search from `start`: returns pred, curr with pred.order < order <= curr.order
+	 * (curr may be null at the end of the list), unlinking marked nodes on the way.
+	 */
+	private Window<T> find(Node<T> start, long order) {
+		boolean[] marked = {false};
+		retry:
+		while (true) {
+			Node<T> pred = start;
+			Node<T> curr = pred.next.getReference();
+			while (true) {
+				if (curr == null) {
+					return new Window<T>(pred, null);
+				}
+				Node<T> succ = curr.next.get(marked);
+				while (marked[0]) {
+					if (!pred.next.compareAndSet(curr, succ, false, false)) {
+						continue retry;
+					}
+					curr = succ;
+					if (curr == null) {
+						return new Window<T>(pred, null);
+					}
+					succ = curr.next.get(marked);
+				}
+				if (curr.order >= order) {
+					return new Window<T>(pred, curr);
+				}
+				pred = curr;
+				curr = succ;
+			}
+		}
+	}
+
+	private Node<T> bucketFor(int hash) {
+		return getBucket(hash & (bucketCount.get() - 1));
+	}
+
+	public void add(int key, T x) {
+		int hash = hash(key);
+		long order = regularOrder(hash);
+		Node<T> start = bucketFor(hash);
+		while (true) {
+			Window<T> window = find(start, order);
+			if (window.curr != null && window.curr.order == order) {
+				window.curr.value = x; // we're overwriting, so the size stays the same
+				return;
+			}
+			Node<T> node = new Node<T>(order, key, x, window.curr);
+			if (window.pred.next.compareAndSet(window.curr, node, false, false)) {
+				break;
+			}
+		}
+		int size = bucketCount.get();
+		if (count.incrementAndGet() / size > THRESHOLD && size < (1 << MAX_LOG_BUCKETS)) {
+			if (bucketCount.compareAndSet(size, 2 * size)) {
+				// the buckets are split lazily, so the resize itself is instant
+				TableResizeEvent event = new TableResizeEvent();
+				if (event.shouldCommit()) {
+					event.table = HashTables.LOCK_FREE;
+					event.oldCapacity = size;
+					event.newCapacity = 2 * size;
+					event.commit();
+				}
+			}
+		}
+	}
+
+	public boolean remove(int key) {
+		int hash = hash(key);
+		long order = regularOrder(hash);
+		Node<T> start = bucketFor(hash);
+		while (true) {
+			Window<T> window = find(start, order);
+			Node<T> curr = window.curr;
+			if (curr == null || curr.order != order) {
+				return false;
+			}
+			Node<T> succ = curr.next.getReference();
+			if (!curr.next.attemptMark(succ, true)) {
+				continue;
+			}
+			window.pred.next.compareAndSet(curr, succ, false, false);
+			count.decrementAndGet();
+			return true;
+		}
+	}
+
+	/*
+	 * Wait-free lookup: walks from the bucket sentinel without helping to unlink anything.
+	 */
+	public T get(int key) {
+		int hash = hash(key);
+		long order = regularOrder(hash);
+		Node<T> curr = bucketFor(hash);
+		while (curr != null && curr.order < order) {
+			curr = curr.next.getReference();
+		}
+		if (curr == null || curr.order != order || curr.next.isMarked()) {
+			return null;
+		}
+		return curr.value;
+	}
+
+	public boolean contains(int key) {
+		return get(key) != null;
+	}
+
+	public int capacity() {
+		return bucketCount.get();
+	}
+
+	// every resize doubles the bucket count
+	public int resizes() {
+		return Integer.numberOfTrailingZeros(bucketCount.get()) - initialLogBuckets;
+	}
+}
+
+/*
+ * Picks a HashTable implementation by name, so the address table and the per-destination
+ * caches can be switched between backends from the command line.
+ */
+class HashTables {
+	static final String LBCA = "lbca";
+	static final String OPEN_ADDRESSING = "open";
+	static final String LOCK_FREE = "lockfree";
+
+	static <T> HashTable<T> create(String backend, int logSize) {
+		switch (backend) {
+			case LBCA:
+				return new LBCAHashTable<T>(AddressData.HASH_TABLE_INITIAL_CAPACITY, AddressData.HASH_TABLE_BUCKET_SIZE);
+			case OPEN_ADDRESSING:
+				return new OpenAddressHashTable<T>(logSize);
+			case LOCK_FREE:
+				return new LockFreeHashTable<T>(logSize);
+			default:
+				throw new IllegalArgumentException("Unknown hash table backend: " + backend);
+		}
+	}
+}
+
 class SerialHashTableTest {
 	public static void main(String[] args) {  
 		SerialHashTable<Integer> table = new SerialHashTable<Integer>(2, 8);
@@ -8,11 +8,28 @@ public class IntervalList {
      * and the addition of intervals of numbers where the
      * last interval applied to the object overwrites previous
      * overlapping intervals.
+     *
+     * In snapshot mode the linked list is still the source of truth for
+     * writers, but writers are serialized and each one republishes an
+     * immutable sorted copy of the boundaries (see `IntervalSnapshot`) once it is
+     * done. Readers binary search the current copy without taking any locks.
      */
     public Node head;
+    final boolean snapshotReads;
+    private final ReentrantLock writerLock = new ReentrantLock();
+    private volatile IntervalSnapshot snapshot;
+
     public IntervalList() {
+        this(false);
+    }
+
+    public IntervalList(boolean snapshotReads) {
         head = new Node(Integer.MIN_VALUE, true);
         head.next = new Node(Integer.MAX_VALUE, false);
+        this.snapshotReads = snapshotReads;
+        if (snapshotReads) {
+            publishSnapshot();
+        }
     }
 
     public void printList() {
@@ -26,6 +43,23 @@ public class IntervalList {
      * Adds the closed interval [start,end] to the list and updates the personaNonGrata for the given source
      */
     public void addInterval(int start, int end, AddressData sourceData, Boolean personaNonGrata) {
+        IntervalTraversalEvent event = new IntervalTraversalEvent();
+        event.begin();
+        if (!snapshotReads) {
+            addIntervalHandOverHand(start, end, sourceData, personaNonGrata);
+        } else {
+            writerLock.lock();
+            try {
+                addIntervalHandOverHand(start, end, sourceData, personaNonGrata);
+                publishSnapshot();
+            } finally {
+                writerLock.unlock();
+            }
+        }
+        commitTraversal(event, IntervalTraversalEvent.ADD, start, end);
+    }
+
+    private void addIntervalHandOverHand(int start, int end, AddressData sourceData, Boolean personaNonGrata) {
         // Ranges are inclusive
         head.lock.lock();
         Node pred = head;
@@ -99,6 +133,23 @@ public class IntervalList {
      * Removes the closed interval [start,end] to the list and updates the personaNonGrata for the given source
      */
     public void removeInterval(int start, int end, AddressData sourceData, Boolean personaNonGrata) {
+        IntervalTraversalEvent event = new IntervalTraversalEvent();
+        event.begin();
+        if (!snapshotReads) {
+            removeIntervalHandOverHand(start, end, sourceData, personaNonGrata);
+        } else {
+            writerLock.lock();
+            try {
+                removeIntervalHandOverHand(start, end, sourceData, personaNonGrata);
+                publishSnapshot();
+            } finally {
+                writerLock.unlock();
+            }
+        }
+        commitTraversal(event, IntervalTraversalEvent.REMOVE, start, end);
+    }
+
+    private void removeIntervalHandOverHand(int start, int end, AddressData sourceData, Boolean personaNonGrata) {
         // Ranges are inclusive
         head.lock.lock();
         Node pred = head;
@@ -173,6 +224,17 @@ public class IntervalList {
      * Returns true if the given address `key` is present in the list and if the sender is even allowed to send messages
      */
     public boolean contains(int key, AddressData senderData) {
+        if (snapshotReads) {
+            return snapshot.accepts(key) && !senderData.personaNonGrata.get();
+        }
+        IntervalTraversalEvent event = new IntervalTraversalEvent();
+        event.begin();
+        boolean contained = containsHandOverHand(key, senderData);
+        commitTraversal(event, IntervalTraversalEvent.CONTAINS, key, key);
+        return contained;
+    }
+
+    private boolean containsHandOverHand(int key, AddressData senderData) {
         //lock
         head.lock.lock();
         Node pred = head;
@@ -200,9 +262,110 @@ public class IntervalList {
         }
         
     }
+
+    /*
+     * Records the traversal if it took long enough for the recording's threshold. A snapshot
+     * lookup is a lock-free binary search and is never recorded.
+     */
+    private void commitTraversal(IntervalTraversalEvent event, String operation, int start, int end) {
+        if (event.shouldCommit()) {
+            event.operation = operation;
+            event.start = start;
+            event.end = end;
+            event.snapshotReads = snapshotReads;
+            event.commit();
+        }
+    }
+
+    /*
+     * Number of boundaries in the list, the two sentinels included, for monitoring. In
+     * snapshot mode this reads the current snapshot; otherwise it walks the list hand over
+     * hand like `contains`, briefly holding up writers behind it.
+     */
+    public int length() {
+        if (snapshotReads) {
+            return snapshot.keys.length;
+        }
+        head.lock.lock();
+        Node pred = head;
+        int length = 1;
+        try {
+            Node curr = pred.next;
+            curr.lock.lock();
+            try {
+                while (curr.next != null) {
+                    pred.lock.unlock();
+                    pred = curr;
+                    curr = curr.next;
+                    curr.lock.lock();
+                    length++;
+                }
+                return length + 1;
+            } finally {
+                curr.lock.unlock();
+            }
+        } finally {
+            pred.lock.unlock();
+        }
+    }
+
+    /*
+     * Copies the current boundaries into a fresh `IntervalSnapshot` and publishes it. Must only be
+     * called by the writer holding `writerLock`, so nobody else is relinking nodes meanwhile.
+     */
+    private void publishSnapshot() {
+        int length = 0;
+        for (Node curr = head; curr != null; curr = curr.next) {
+            length++;
+        }
+        int[] keys = new int[length];
+        boolean[] accept = new boolean[length];
+        int i = 0;
+        for (Node curr = head; curr != null; curr = curr.next) {
+            keys[i] = curr.key;
+            accept[i] = curr.accept;
+            i++;
+        }
+        snapshot = new IntervalSnapshot(keys, accept);
+    }
     
 }
 
+/*
+ * Immutable copy of an IntervalList: `keys` are the boundaries in list order and `accept[i]`
+ * says whether the addresses from keys[i] up to the next boundary are accepted.
+ */
+final class IntervalSnapshot {
+    final int[] keys;
+    final boolean[] accept;
+
+    IntervalSnapshot(int[] keys, boolean[] accept) {
+        this.keys = keys;
+        this.accept = accept;
+    }
+
+    /*
+     * Same answer as the hand-over-hand walk: find the first boundary >= key, use it if it
+     * is equal to key and otherwise use the boundary before it.
+     */
+    boolean accepts(int key) {
+        int lo = 1; // keys[0] is the Integer.MIN_VALUE sentinel, the walk never stops there
+        int hi = keys.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (keys[mid] < key) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        if (keys[lo] == key) {
+            return accept[lo];
+        }
+        return accept[lo - 1];
+    }
+}
+
 class Node {
     int key;
     boolean accept;
@@ -0,0 +1,218 @@
+import java.util.Arrays;
+import java.util.Random;
+
+class LatencyHistogram {
+    /**
+     * Log-linear histogram of non-negative longs (nanoseconds here), in the manner of
+     * HdrHistogram: values below 2 * SUB_BUCKETS get a bucket each, and every power of two
+     * above that is split into SUB_BUCKETS equal buckets, so a bucket is never wider than
+     * 1 / 64 of the values in it (about 1.6% relative error) across the whole long range.
+     *
+     * One histogram belongs to one thread: recording is a plain increment of a preallocated
+     * array with no allocation and no atomics. Other threads read it only after the owner
+     * has been joined, typically by adding it to a merged histogram.
+     */
+    static final int SUB_BUCKET_BITS = 6;
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    final long[] counts = new long[BUCKETS];
+    long count;
+    long max;
+    double sum;
+
+    void record(long value) {
+        if (value < 0) {
+            value = 0; // nanoTime differences across threads can be slightly negative
+        }
+        counts[index(value)]++;
+        count++;
+        sum += value;
+        if (value > max) {
+            max = value;
+        }
+    }
+
+    static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        // keep the top SUB_BUCKET_BITS + 1 bits of the value
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (shift << SUB_BUCKET_BITS) + (int) (value >>> shift);
+    }
+
+    // the largest value that lands in bucket `index`
+    static long highestEquivalent(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = (index >>> SUB_BUCKET_BITS) - 1;
+        long mantissa = index - ((long) shift << SUB_BUCKET_BITS);
+        return ((mantissa + 1) << shift) - 1;
+    }
+
+    void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] += other.counts[i];
+        }
+        count += other.count;
+        sum += other.sum;
+        max = Math.max(max, other.max);
+    }
+
+    /*
+     * The value below which `percentile` percent of the recorded values fall, reported as the
+     * top of its bucket but never above the largest recorded value; 0 if nothing was recorded.
+     */
+    long percentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(highestEquivalent(i), max);
+            }
+        }
+        return max;
+    }
+
+    double mean() {
+        return count == 0 ? 0 : sum / count;
+    }
+}
+
+class StageLatency {
+    /*
+     * One worker's latency histograms, one per stage of a packet's way through the pipeline:
+     *
+     *   QUEUE       dispatch to pickup by a head worker
+     *   HEAD        pickup to completion, or to the enqueue for a cache-miss worker
+     *   MISS_QUEUE  that enqueue to the pickup by the cache-miss worker
+     *   CACHE_MISS  that pickup to completion
+     *   END_TO_END  dispatch to completion, for every packet
+     *   SERVICE     pickup to completion, for the serial firewall, which has no queues
+     *
+     * Intervals that end before `fromNanos` (a System.nanoTime() value, typically the end of
+     * the warmup) are not recorded.
+     */
+    static final int QUEUE = 0;
+    static final int HEAD = 1;
+    static final int MISS_QUEUE = 2;
+    static final int CACHE_MISS = 3;
+    static final int END_TO_END = 4;
+    static final int SERVICE = 5;
+    static final String[] NAMES = { "head queue", "head worker", "cache-miss queue", "cache-miss worker",
+        "end to end", "service time" };
+    static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+
+    final LatencyHistogram[] stages = new LatencyHistogram[NAMES.length];
+    final long fromNanos;
+
+    StageLatency(long fromNanos) {
+        this.fromNanos = fromNanos;
+        for (int i = 0; i < stages.length; i++) {
+            stages[i] = new LatencyHistogram();
+        }
+    }
+
+    // the interval from `start` to `end`, both System.nanoTime() values
+    void record(int stage, long start, long end) {
+        if (end - fromNanos >= 0) {
+            stages[stage].record(end - start);
+        }
+    }
+
+    static StageLatency merge(WorkerStats[] stats) {
+        StageLatency merged = new StageLatency(0); // only added to, never recorded into
+        for (WorkerStats s : stats) {
+            if (s.latency != null) {
+                for (int i = 0; i < merged.stages.length; i++) {
+                    merged.stages[i].add(s.latency.stages[i]);
+                }
+            }
+        }
+        return merged;
+    }
+
+    // one line per stage that saw packets, in microseconds
+    String report() {
+        StringBuilder out = new StringBuilder(String.format("%-18s %10s %9s", "latency (us)", "count", "mean"));
+        for (double p : PERCENTILES) {
+            out.append(String.format(" %9s", "p" + (p == (int) p ? Integer.toString((int) p) : Double.toString(p))));
+        }
+        out.append(String.format(" %9s", "max"));
+        for (int i = 0; i < stages.length; i++) {
+            LatencyHistogram h = stages[i];
+            if (h.count == 0) {
+                continue;
+            }
+            out.append(String.format("%n%-18s %10d %9.1f", NAMES[i], h.count, h.mean() / 1e3));
+            for (double p : PERCENTILES) {
+                out.append(String.format(" %9.1f", h.percentile(p) / 1e3));
+            }
+            out.append(String.format(" %9.1f", h.max / 1e3));
+        }
+        return out.toString();
+    }
+}
+
+class LatencyHistogramTest {
+    /*
+     * Records random values spread over many orders of magnitude and checks every reported
+     * percentile against the exact one from the sorted values, which it may exceed by no
+     * more than a bucket width; then times recording.
+     */
+    public static void main(String[] args) {
+        Random random = new Random(42);
+        int n = 1 << 20;
+        long[] values = new long[n];
+        LatencyHistogram h = new LatencyHistogram();
+        for (int i = 0; i < n; i++) {
+            values[i] = (long) Math.exp(random.nextDouble() * 30);
+            h.record(values[i]);
+        }
+        Arrays.sort(values);
+        int failures = 0;
+        for (double p : new double[] { 0, 1, 10, 50, 90, 99, 99.9, 99.99, 100 }) {
+            long exact = values[(int) Math.max(0, Math.ceil(p / 100 * n) - 1)];
+            long reported = h.percentile(p);
+            boolean ok = reported >= exact && reported <= exact + exact / LatencyHistogram.SUB_BUCKETS;
+            System.out.printf("p%-6s exact %14d reported %14d%s%n", p, exact, reported, ok ? "" : "  FAIL");
+            failures += ok ? 0 : 1;
+        }
+        for (long v = 0; v < 1 << 16; v++) {
+            int index = LatencyHistogram.index(v);
+            if (LatencyHistogram.highestEquivalent(index) < v
+             || (index > 0 && LatencyHistogram.highestEquivalent(index - 1) >= v)) {
+                System.out.println("bucket bounds wrong for " + v);
+                failures++;
+                break;
+            }
+        }
+        if (LatencyHistogram.index(Long.MAX_VALUE) != LatencyHistogram.BUCKETS - 1) {
+            System.out.println("Long.MAX_VALUE is not in the last bucket");
+            failures++;
+        }
+        if (h.max != values[n - 1] || h.count != n) {
+            System.out.println("count or max wrong");
+            failures++;
+        }
+        System.out.println(failures == 0 ? "ok" : failures + " failures");
+        if (failures != 0) {
+            System.exit(1);
+        }
+
+        for (int round = 0; round < 3; round++) {
+            LatencyHistogram t = new LatencyHistogram();
+            long start = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                t.record(values[(i * 7919) & (n - 1)]);
+            }
+            System.out.printf("record: %.2f ns%n", (double) (System.nanoTime() - start) / n);
+        }
+    }
+}
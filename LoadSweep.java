@@ -0,0 +1,154 @@
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+class LoadSweep {
+    /**
+     * Finds the knee of the latency / throughput curve of PipelineFirewall for each workload
+     * profile. A closed-loop run first measures the saturation throughput; then the pipeline
+     * runs open loop (firewall.rate, see OpenLoopSchedule) at offered loads stepped from a
+     * fraction of that throughput to beyond it, and records the achieved throughput and the
+     * end-to-end latency percentiles, measured from the intended send times.
+     *
+     * The knee is the highest offered load that the pipeline still keeps up with (achieved
+     * at least `load.keepUp` of offered) with an end-to-end p99 no more than `load.kneeFactor`
+     * times the p99 at the lowest offered load that is kept up with. Past it latency is
+     * dominated by queueing.
+     *
+     *   java LoadSweep [profile ...]    profiles as in Sweep (default: mix1)
+     *
+     * Settings: load.steps (0.1,0.25,0.5,0.7,0.8,0.9,1.0,1.1,1.25,1.5), the offered loads as
+     * fractions of the saturation throughput; load.keepUp (0.95); load.kneeFactor (3);
+     * load.out, a CSV file for the curve. The run length, warmup and extra JVM arguments
+     * (for example the worker counts or wait strategies) come from Sweep's settings.
+     */
+    static class Step {
+        final String profile;
+        final double offered;
+        final double achieved;
+        final double[] latency; // end to end: p50, p90, p99, p99.9, max, in microseconds
+
+        Step(String profile, double offered, double achieved, double[] latency) {
+            this.profile = profile;
+            this.offered = offered;
+            this.achieved = achieved;
+            this.latency = latency;
+        }
+
+        double p99() {
+            return latency[2];
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Locale.setDefault(Locale.ROOT);
+        List<String> profiles = new ArrayList<>();
+        for (String arg : args) {
+            if (!Sweep.PROFILES.containsKey(arg)) {
+                throw new IllegalArgumentException("Unknown profile " + arg + ", known: " + Sweep.PROFILES.keySet());
+            }
+            profiles.add(arg);
+        }
+        if (profiles.isEmpty()) {
+            profiles.add("mix1");
+        }
+        double[] steps = doubles(System.getProperty("load.steps", "0.1,0.25,0.5,0.7,0.8,0.9,1.0,1.1,1.25,1.5"));
+        double keepUp = Double.parseDouble(System.getProperty("load.keepUp", "0.95"));
+        double kneeFactor = Double.parseDouble(System.getProperty("load.kneeFactor", "3"));
+
+        List<Step> curve = new ArrayList<>();
+        for (String profile : profiles) {
+            double saturation = Sweep.fork("PipelineFirewall", Sweep.PROFILES.get(profile), new String[0]);
+            System.out.printf("%s: closed-loop saturation %.1f pkts/ms%n", profile, saturation);
+            System.out.printf("%-8s %10s %10s %9s %9s %9s %9s %9s%n",
+                "profile", "offered", "achieved", "p50 us", "p90 us", "p99 us", "p99.9 us", "max us");
+            List<Step> mine = new ArrayList<>();
+            for (double fraction : steps) {
+                double offered = fraction * saturation;
+                List<String> output = Sweep.run("PipelineFirewall", Sweep.PROFILES.get(profile),
+                    new String[] { "-Dfirewall.rate=" + offered });
+                Step step = new Step(profile, offered, Sweep.throughput(output), endToEnd(output));
+                System.out.printf("%-8s %10.1f %10.1f %9.1f %9.1f %9.1f %9.1f %9.1f%n", profile, step.offered,
+                    step.achieved, step.latency[0], step.latency[1], step.latency[2], step.latency[3],
+                    step.latency[4]);
+                mine.add(step);
+            }
+            Step knee = knee(mine, keepUp, kneeFactor);
+            if (knee == null) {
+                System.out.printf("%s: no knee, no offered load was kept up with%n", profile);
+            } else {
+                System.out.printf("%s: knee at %.1f pkts/ms offered (%.0f%% of saturation), p99 %.1f us%n",
+                    profile, knee.offered, 100 * knee.offered / saturation, knee.p99());
+            }
+            curve.addAll(mine);
+        }
+        String out = System.getProperty("load.out");
+        if (out != null) {
+            write(curve, out);
+        }
+    }
+
+    /*
+     * The highest load that is kept up with and whose p99 is within kneeFactor of the p99 at
+     * the lowest load that is kept up with; null if no load is kept up with.
+     */
+    static Step knee(List<Step> steps, double keepUp, double kneeFactor) {
+        Step lowest = null;
+        for (Step step : steps) {
+            if (step.achieved >= keepUp * step.offered && (lowest == null || step.offered < lowest.offered)) {
+                lowest = step;
+            }
+        }
+        if (lowest == null) {
+            return null;
+        }
+        Step knee = null;
+        for (Step step : steps) {
+            if (step.achieved >= keepUp * step.offered && step.p99() <= kneeFactor * lowest.p99()
+             && (knee == null || step.offered > knee.offered)) {
+                knee = step;
+            }
+        }
+        return knee;
+    }
+
+    // the percentiles of the "end to end" row of the latency report
+    static double[] endToEnd(List<String> output) {
+        String row = StageLatency.NAMES[StageLatency.END_TO_END];
+        for (String line : output) {
+            if (line.startsWith(row)) {
+                String[] columns = line.substring(row.length()).trim().split("\\s+");
+                // count, mean, then one column per StageLatency.PERCENTILES, then max
+                double[] latency = new double[StageLatency.PERCENTILES.length + 1];
+                for (int i = 0; i < latency.length; i++) {
+                    latency[i] = Double.parseDouble(columns[2 + i]);
+                }
+                return latency;
+            }
+        }
+        throw new IllegalStateException("no end-to-end latency in the output:\n" + String.join("\n", output));
+    }
+
+    static void write(List<Step> curve, String out) throws IOException {
+        try (PrintWriter w = new PrintWriter(Files.newBufferedWriter(Paths.get(out)))) {
+            w.println("profile,offered,achieved,p50_us,p90_us,p99_us,p99_9_us,max_us");
+            for (Step s : curve) {
+                w.printf("%s,%.3f,%.3f,%.1f,%.1f,%.1f,%.1f,%.1f%n", s.profile, s.offered, s.achieved,
+                    s.latency[0], s.latency[1], s.latency[2], s.latency[3], s.latency[4]);
+            }
+        }
+    }
+
+    static double[] doubles(String list) {
+        String[] parts = list.split(",");
+        double[] xs = new double[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            xs[i] = Double.parseDouble(parts[i].trim());
+        }
+        return xs;
+    }
+}
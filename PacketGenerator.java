@@ -13,11 +13,12 @@ class PacketGeneratorApp {
   }
 }
 
-class PacketGenerator {
+class PacketGenerator implements PacketSource {
   final AddressPairGenerator pairGen;
   final ExponentialGenerator expGen;
-  final UniformGenerator uniGen = new UniformGenerator();
-  final int mask; // numTrains - 1
+  final UniformGenerator uniGen;
+  final int numTrains; // of this shard
+  final int mask; // numTrains - 1 if numTrains is a power of two, otherwise -1
   final int addressesMask;
   final double meanTrainSize;
   final double meanTrainsPerComm;
@@ -29,6 +30,14 @@ class PacketGenerator {
   int numConfigPackets = 0;
   int configAddressMask;
   PacketStruct[] trains;
+  // the configuration, kept so that split() can build shards of it
+  final int numAddressesLog;
+  final int numTrainsLog;
+  final int meanWindow;
+  final int meanCommsPerAddress;
+  final double configFraction;
+  final int shard;
+  final int numShards;
   public PacketGenerator(
     int numAddressesLog,
     int numTrainsLog,
@@ -40,10 +49,45 @@ class PacketGenerator {
     double configFraction,
     double pngFraction,
     double acceptingFraction ) {
-    this.expGen = new ExponentialGenerator((1.0d/configFraction)-1);
+    this(numAddressesLog, numTrainsLog, meanTrainSize, meanTrainsPerComm, meanWindow,
+      meanCommsPerAddress, meanWork, configFraction, pngFraction, acceptingFraction, 0, 1);
+  }
+  /*
+   * Shard `shard` of `numShards` of the configuration above. Each shard draws from its own
+   * seeds, owns ceil(numTrains / numShards) of the trains and starts its address walk at its
+   * own offset, so the shards can run on separate threads and each one is reproducible on its
+   * own. Shard 0 of 1 is exactly the unsharded generator; when there are several shards none
+   * of them uses its seeds, so they do not replay the config packets the unsharded
+   * generator handed out before the split, e.g. to prefill the address table.
+   */
+  public PacketGenerator(
+    int numAddressesLog,
+    int numTrainsLog,
+    double meanTrainSize,
+    double meanTrainsPerComm,
+    int meanWindow,
+    int meanCommsPerAddress,
+    int meanWork,
+    double configFraction,
+    double pngFraction,
+    double acceptingFraction,
+    int shard,
+    int numShards ) {
+    this.numAddressesLog = numAddressesLog;
+    this.numTrainsLog = numTrainsLog;
+    this.meanWindow = meanWindow;
+    this.meanCommsPerAddress = meanCommsPerAddress;
+    this.configFraction = configFraction;
+    this.shard = shard;
+    this.numShards = numShards;
+    int seedShard = numShards == 1 ? 0 : shard + 1; // shardSeed 0 is the unsharded generator's
+    this.uniGen = new UniformGenerator(RandomGenerator.shardSeed(seedShard, 0));
+    this.expGen = new ExponentialGenerator((1.0d/configFraction)-1, RandomGenerator.shardSeed(seedShard, 1));
     this.pairGen = new AddressPairGenerator(meanCommsPerAddress, 
-      numAddressesLog, (double) meanWindow);
-    this.mask = (1 << numTrainsLog) - 1;
+      numAddressesLog, (double) meanWindow, RandomGenerator.shardSeed(seedShard, 2),
+      (int) (((long) shard << numAddressesLog) / numShards));
+    this.numTrains = (int) Math.max(1, ((1L << numTrainsLog) + numShards - 1) / numShards);
+    this.mask = Integer.bitCount(numTrains) == 1 ? numTrains - 1 : -1;
     this.addressesMask = (1 << numAddressesLog) - 1;
     this.meanTrainSize = meanTrainSize;
     this.meanTrainsPerComm = meanTrainsPerComm;
@@ -52,13 +96,36 @@ class PacketGenerator {
     this.configAddressMask = (1 << (numAddressesLog >> 1)) - 1;
     this.pngFraction = pngFraction;
     this.acceptingFraction = acceptingFraction;
-    this.trains = new PacketStruct[mask+1];
-    for( int i = 0; i <= mask; i++ ) {
+    this.trains = new PacketStruct[numTrains];
+    for( int i = 0; i < numTrains; i++ ) {
       this.trains[i] = new PacketStruct(pairGen.getPair(), 
         expGen.getRand(meanTrainSize),expGen.getRand(meanTrainsPerComm), 
         expGen.getRand(this.meanWork), uniGen.getRand());
     }
   }
+  /*
+   * Splits this configuration into `numShards` independent generators (see the sharding
+   * constructor). With one shard this returns a fresh copy of the unsharded generator.
+   */
+  public PacketGenerator[] split(int numShards) {
+    PacketGenerator[] shards = new PacketGenerator[numShards];
+    for( int i = 0; i < numShards; i++ ) {
+      shards[i] = new PacketGenerator(numAddressesLog, numTrainsLog, meanTrainSize,
+        meanTrainsPerComm, meanWindow, meanCommsPerAddress, (int) meanWork, configFraction,
+        pngFraction, acceptingFraction, i, numShards);
+    }
+    for( PacketGenerator g : shards )
+      g.setFastExponential(expGen.fast);
+    return shards;
+  }
+  /*
+   * Switches this generator's exponential draws (train sizes, work, config spacing and
+   * address jitter) between Math.log and the table-driven sampler; see ExponentialGenerator.
+   */
+  public void setFastExponential(boolean fast) {
+    expGen.fast = fast;
+    pairGen.expGen.fast = fast;
+  }
   public Packet getPacket() {
     if( timeToNextConfigPacket == 0 ) {
       numConfigPackets++;
@@ -78,40 +145,97 @@ class PacketGenerator {
   public Packet getDataPacket() {
     if( timeToNextConfigPacket > 0 ) 
       timeToNextConfigPacket--;
-    int trainIndex = uniGen.getRand() & mask;
+    int trainIndex = trainIndex(uniGen.getRand());
     PacketStruct pkt = trains[trainIndex];
     Packet packet = new Packet(
-      new Header(pkt.pair.source, pkt.pair.dest, pkt.sequenceNumber, pkt.trainSize, pkt.tag),
+      new Header(pkt.source, pkt.dest, pkt.sequenceNumber, pkt.trainSize, pkt.tag),
       new Body(expGen.getRand(pkt.meanWork), uniGen.getRand()));
+    advanceTrain(pkt);
+    return packet;
+  }
+  // a uniformly drawn train of this shard, the same as `rand & mask` for a power of two
+  private int trainIndex(int rand) {
+    return mask >= 0 ? rand & mask : Integer.remainderUnsigned(rand, numTrains);
+  }
+  private void advanceTrain(PacketStruct pkt) {
     pkt.sequenceNumber++;
     if( pkt.sequenceNumber == pkt.trainSize ) {// this was the last packet
       pkt.sequenceNumber = 0;
       pkt.trainNumber++;
     }
     if( pkt.trainNumber == pkt.totalTrains ) {// this was the last train
-      trains[trainIndex] = new PacketStruct(pairGen.getPair(), 
+      pairGen.advance();
+      pkt.reset(pairGen.lastSource(), pairGen.lastDest(),
         expGen.getRand(meanTrainSize), expGen.getRand(meanTrainsPerComm), 
         expGen.getRand(meanWork), uniGen.getRand());
     }
-    return packet;
+  }
+  /*
+   * Slot mode: writes the next packet straight into `slot` of `ring` instead of allocating
+   * it. Draws the same random numbers in the same order as getPacket, so both modes produce
+   * the same packet stream.
+   */
+  public void getPacket(PacketRing ring, int slot) {
+    if( timeToNextConfigPacket == 0 ) {
+      numConfigPackets++;
+      timeToNextConfigPacket = expGen.getRand();
+      getConfigPacket(ring, slot);
+    }
+    else
+      getDataPacket(ring, slot);
+  }
+  public void getConfigPacket(PacketRing ring, int slot) {
+    pairGen.advance();
+    lastConfigAddress = pairGen.lastSource();
+    int addressBegin = uniGen.getRand(addressesMask-configAddressMask);
+    ring.type[slot] = PacketRing.CONFIG;
+    ring.configAddress[slot] = lastConfigAddress;
+    ring.personaNonGrata[slot] = uniGen.getUnitRand() < pngFraction;
+    ring.acceptingRange[slot] = uniGen.getUnitRand() < acceptingFraction;
+    ring.addressBegin[slot] = addressBegin;
+    ring.addressEnd[slot] = uniGen.getRand(addressBegin+1,addressBegin+configAddressMask);
+  }
+  public void getDataPacket(PacketRing ring, int slot) {
+    if( timeToNextConfigPacket > 0 ) 
+      timeToNextConfigPacket--;
+    int trainIndex = trainIndex(uniGen.getRand());
+    PacketStruct pkt = trains[trainIndex];
+    ring.type[slot] = PacketRing.DATA;
+    ring.source[slot] = pkt.source;
+    ring.dest[slot] = pkt.dest;
+    ring.sequenceNumber[slot] = pkt.sequenceNumber;
+    ring.trainSize[slot] = pkt.trainSize;
+    ring.tag[slot] = pkt.tag;
+    ring.iterations[slot] = expGen.getRand(pkt.meanWork);
+    ring.seed[slot] = uniGen.getRand();
+    advanceTrain(pkt);
   }
 }
 
 class PacketStruct {
-  final AddressPair pair;
-  final int trainSize;
-  final int totalTrains;
-  final double meanWork;
-  final int tag;
+  int source;
+  int dest;
+  int trainSize;
+  int totalTrains;
+  double meanWork;
+  int tag;
   int sequenceNumber = 0;
   int trainNumber = 0;
   public PacketStruct(AddressPair pair, int trainSize, int totalTrains,
     double meanWork, int tag) {
-    this.pair = pair;
+    reset(pair.source, pair.dest, trainSize, totalTrains, meanWork, tag);
+  }
+  // reuses this struct for the next train instead of allocating a new one
+  void reset(int source, int dest, int trainSize, int totalTrains,
+    double meanWork, int tag) {
+    this.source = source;
+    this.dest = dest;
     this.trainSize = trainSize;
     this.totalTrains = totalTrains;
     this.meanWork = meanWork;
     this.tag = tag;
+    this.sequenceNumber = 0;
+    this.trainNumber = 0;
   }
 }
 
@@ -137,20 +261,33 @@ class AddressPairGenerator {
   int dest;
   double sourceResidue;
   double destResidue;
+  int lastSource; // the pair produced by the last advance()
+  int lastDest;
   ExponentialGenerator expGen;
   UniformGenerator uniGen;
   public AddressPairGenerator(int meanCommsPerAddress, int logSize, double mean) {
+    this(meanCommsPerAddress, logSize, mean, RandomGenerator.DEFAULT_SEED, 0);
+  }
+  public AddressPairGenerator(int meanCommsPerAddress, int logSize, double mean,
+    int seed, int startAddress) {
     this.speed = 2.0d / ((double) meanCommsPerAddress);
     this.mask = (1 << logSize) - 1;
     this.logSize = logSize;
-    this.source = 0;
-    this.dest = 0;
+    this.source = startAddress & mask;
+    this.dest = startAddress & mask;
     this.sourceResidue = 0.0d;
     this.destResidue = 0.0d;
-    this.expGen = new ExponentialGenerator(mean);
-    this.uniGen = new UniformGenerator();
+    this.expGen = new ExponentialGenerator(mean, seed);
+    this.uniGen = new UniformGenerator(seed);
   }
   public AddressPair getPair() {
+    advance();
+    return new AddressPair(lastSource, lastDest);
+  }
+  /*
+   * Moves to the next pair without allocating it; read it with lastSource() and lastDest().
+   */
+  void advance() {
     sourceResidue = sourceResidue + speed*uniGen.getUnitRand();
     destResidue = destResidue + speed*uniGen.getUnitRand();
     while( sourceResidue > 0.0d ) {
@@ -161,9 +298,11 @@ class AddressPairGenerator {
       dest = ( dest + mask ) & mask; // he's walking backward...
       destResidue = destResidue - 1.0d;
     }
-    return new AddressPair(uniGen.mangle(1+((source+expGen.getRand())))& mask,
-                          uniGen.mangle(1+((dest+expGen.getRand())))& mask);
+    lastSource = uniGen.mangle(1+((source+expGen.getRand())))& mask;
+    lastDest = uniGen.mangle(1+((dest+expGen.getRand())))& mask;
   }
+  int lastSource() { return lastSource; }
+  int lastDest() { return lastDest; }
 }
 
 class AddressPair {
@@ -181,6 +320,11 @@ class Packet {
   final Header header;
   final Body body;
   final MessageType type;
+  // System.nanoTime() stamps, set only when the pipeline records latency
+  long dispatchNanos;
+  long pickupNanos;
+  long missEnqueueNanos;
+  CacheMissEvent missEvent; // from the cache miss to its decision, while the event is recorded
   public Packet(Config config) {
     this.config = config;
     this.header = null;
@@ -0,0 +1,94 @@
+class PacketRing {
+    /**
+     * Preallocated structure-of-arrays packet storage. A packet is a slot index; its fields
+     * live at that index in the primitive arrays below, so producing and consuming packets
+     * allocates nothing. Free slots sit in an IntRingQueue: the single producer claims them
+     * and any worker may release them. Claiming and releasing go through that queue's
+     * release/acquire handoff, as does passing a slot between stages, so the plain array
+     * writes of one owner are visible to the next.
+     *
+     * Since every packet in flight holds a slot, the capacity also bounds the number of
+     * packets in flight.
+     */
+    static final byte CONFIG = 0;
+    static final byte DATA = 1;
+
+    final byte[] type;
+    // data packets
+    final int[] source;
+    final int[] dest;
+    final int[] sequenceNumber;
+    final int[] trainSize;
+    final int[] tag;
+    final long[] iterations;
+    final long[] seed;
+    // config packets
+    final int[] configAddress;
+    final boolean[] personaNonGrata;
+    final boolean[] acceptingRange;
+    final int[] addressBegin;
+    final int[] addressEnd;
+    // System.nanoTime() stamps, set only when the pipeline records latency
+    final long[] dispatchNanos;
+    final long[] pickupNanos;
+    final long[] missEnqueueNanos;
+    // from a cache miss to its decision, while firewall.CacheMiss is recorded
+    final CacheMissEvent[] missEvent;
+
+    private final IntRingQueue free;
+
+    public PacketRing(int capacity) {
+        type = new byte[capacity];
+        source = new int[capacity];
+        dest = new int[capacity];
+        sequenceNumber = new int[capacity];
+        trainSize = new int[capacity];
+        tag = new int[capacity];
+        iterations = new long[capacity];
+        seed = new long[capacity];
+        configAddress = new int[capacity];
+        personaNonGrata = new boolean[capacity];
+        acceptingRange = new boolean[capacity];
+        addressBegin = new int[capacity];
+        addressEnd = new int[capacity];
+        dispatchNanos = new long[capacity];
+        pickupNanos = new long[capacity];
+        missEnqueueNanos = new long[capacity];
+        missEvent = new CacheMissEvent[capacity];
+        free = new IntRingQueue(capacity);
+        for (int i = 0; i < capacity; i++) {
+            free.offer(i);
+        }
+    }
+
+    public int capacity() {
+        return type.length;
+    }
+
+    /*
+     * Returns a free slot, or -1 if every slot is in flight. Only one thread may claim.
+     */
+    public int claim() {
+        return free.poll();
+    }
+
+    public void release(int slot) {
+        free.offer(slot);
+    }
+
+    public int inFlight() {
+        return capacity() - free.size();
+    }
+
+    public void printPacket(int slot) {
+        if (type[slot] == CONFIG) {
+            System.out.println("CONFIG: " + configAddress[slot] + " <" + personaNonGrata[slot] +
+                "," + acceptingRange[slot] + ">" + " [" + addressBegin[slot] +
+                "," + addressEnd[slot] + ")");
+        } else {
+            System.out.println("data:   " + "<" + source[slot] + "," + dest[slot] +
+                ">" + " " + sequenceNumber[slot] + "/" + trainSize[slot] + " (" +
+                tag[slot] + ")");
+        }
+    }
+}
@@ -0,0 +1,338 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+public interface PacketSource {
+	/**
+	 * Anything that can feed packets to the firewall: the PacketGenerator itself, or a
+	 * recorded trace of its output (PacketTraceReader). `getConfigPacket` is what the
+	 * firewalls use to build the address table before the timed run; `getPacket` is the
+	 * timed traffic, either as a new Packet or written into a slot of a PacketRing.
+	 */
+	public Packet getPacket();
+	public Packet getConfigPacket();
+	public void getPacket(PacketRing ring, int slot);
+}
+
+class PacketTrace {
+	/**
+	 * Binary trace format. A 32-byte header is followed by fixed-width 40-byte records in
+	 * little-endian order: first the `warmup` config packets, then `packets` packets of
+	 * timed traffic.
+	 *
+	 *   header: int MAGIC, int VERSION, int RECORD_SIZE, int 0, long warmup, long packets
+	 *   record: int kind, then for a config packet int address, addressBegin, addressEnd
+	 *           and for a data packet int source, dest, sequenceNumber, trainSize, tag,
+	 *           long iterations, long seed (unused fields are zero)
+	 *
+	 * `kind` is CONFIG or DATA, plus PNG and ACCEPTING bits for config packets.
+	 */
+	static final int MAGIC = 0x46575452; // "FWTR"
+	static final int VERSION = 1;
+	static final int HEADER_SIZE = 32;
+	static final int RECORD_SIZE = 40;
+	static final int CONFIG = 0;
+	static final int DATA = 1;
+	static final int PNG = 1 << 8;
+	static final int ACCEPTING = 1 << 9;
+
+	// number of config packets the firewall mains draw to build their address table
+	static long warmupPackets(int numAddressLog) {
+		return (long) Math.ceil(Math.pow(1 << numAddressLog, 1.5));
+	}
+
+	/*
+	 * The source the firewall mains run on: a replay of the trace named by -Dfirewall.trace
+	 * if there is one, otherwise `generator`.
+	 */
+	static PacketSource sourceFor(PacketGenerator generator) {
+		String path = System.getProperty("firewall.trace");
+		return path == null ? generator : PacketTraceReader.open(path);
+	}
+
+	/*
+	 * Writes `warmup` config packets and then `packets` packets of `source` to `path`.
+	 */
+	static void record(PacketSource source, Path path, long warmup, long packets) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			ByteBuffer buffer = ByteBuffer.allocateDirect(RECORD_SIZE << 12).order(ByteOrder.LITTLE_ENDIAN);
+			buffer.putInt(MAGIC).putInt(VERSION).putInt(RECORD_SIZE).putInt(0);
+			buffer.putLong(warmup).putLong(packets);
+			for (long i = 0; i < warmup + packets; i++) {
+				if (buffer.remaining() < RECORD_SIZE) {
+					flush(channel, buffer);
+				}
+				put(buffer, i < warmup ? source.getConfigPacket() : source.getPacket());
+			}
+			flush(channel, buffer);
+		}
+	}
+
+	private static void put(ByteBuffer buffer, Packet pkt) {
+		int start = buffer.position();
+		if (pkt.type == Packet.MessageType.ConfigPacket) {
+			Config config = pkt.config;
+			buffer.putInt(CONFIG | (config.personaNonGrata ? PNG : 0) | (config.acceptingRange ? ACCEPTING : 0));
+			buffer.putInt(config.address).putInt(config.addressBegin).putInt(config.addressEnd);
+		} else {
+			Header header = pkt.header;
+			buffer.putInt(DATA).putInt(header.source).putInt(header.dest);
+			buffer.putInt(header.sequenceNumber).putInt(header.trainSize).putInt(header.tag);
+			buffer.putLong(pkt.body.iterations).putLong(pkt.body.seed);
+		}
+		while (buffer.position() < start + RECORD_SIZE) {
+			buffer.put((byte) 0);
+		}
+	}
+
+	private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+}
+
+class PacketTraceReader implements PacketSource, AutoCloseable {
+	/**
+	 * Replays a trace written by PacketTrace.record straight from the file. The file is
+	 * mapped one window of WINDOW_RECORDS records at a time and fields are read in place
+	 * with absolute gets, so traces larger than the heap (or than one 2 GB mapping) stream
+	 * through the page cache and nothing is copied.
+	 *
+	 * `getConfigPacket` reads the warmup section and fails if it is exhausted or the next
+	 * record is not a config packet; `getPacket` reads the timed section and starts over
+	 * from its first record when it runs out, so a run can outlast the trace.
+	 */
+	static final int WINDOW_RECORDS = 1 << 22; // 160 MB
+
+	private final FileChannel channel;
+	private final int windowRecords;
+	final long warmup;
+	final long packets;
+	private long next = 0; // index of the next record, counting the warmup section
+	private MappedByteBuffer window;
+	private long windowFirst = 0;
+	private long windowEnd = 0;
+
+	public PacketTraceReader(Path path) throws IOException {
+		this(path, WINDOW_RECORDS);
+	}
+
+	PacketTraceReader(Path path, int windowRecords) throws IOException {
+		this.windowRecords = windowRecords;
+		channel = FileChannel.open(path, StandardOpenOption.READ);
+		ByteBuffer header = ByteBuffer.allocate(PacketTrace.HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		while (header.hasRemaining() && channel.read(header, header.position()) >= 0) {
+		}
+		header.flip();
+		if (header.remaining() < PacketTrace.HEADER_SIZE || header.getInt() != PacketTrace.MAGIC
+				|| header.getInt() != PacketTrace.VERSION || header.getInt() != PacketTrace.RECORD_SIZE) {
+			channel.close();
+			throw new IOException(path + " is not a version " + PacketTrace.VERSION + " packet trace");
+		}
+		header.getInt();
+		warmup = header.getLong();
+		packets = header.getLong();
+		long expected = PacketTrace.HEADER_SIZE + (warmup + packets) * PacketTrace.RECORD_SIZE;
+		if (channel.size() < expected) {
+			channel.close();
+			throw new IOException(path + " is truncated: " + channel.size() + " of " + expected + " bytes");
+		}
+	}
+
+	public static PacketTraceReader open(String path) {
+		try {
+			return new PacketTraceReader(Paths.get(path));
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	// byte offset of record `index` within the current window, mapping a new one if needed
+	private int locate(long index) {
+		if (index < windowFirst || index >= windowEnd) {
+			long end = Math.min(warmup + packets, index + windowRecords);
+			try {
+				window = channel.map(FileChannel.MapMode.READ_ONLY,
+						PacketTrace.HEADER_SIZE + index * PacketTrace.RECORD_SIZE,
+						(end - index) * PacketTrace.RECORD_SIZE);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			window.order(ByteOrder.LITTLE_ENDIAN);
+			windowFirst = index;
+			windowEnd = end;
+		}
+		return (int) (index - windowFirst) * PacketTrace.RECORD_SIZE;
+	}
+
+	private int nextTimed() {
+		if (packets == 0) {
+			throw new IllegalStateException("trace has no timed packets");
+		}
+		if (next < warmup || next >= warmup + packets) {
+			next = warmup;
+		}
+		return locate(next++);
+	}
+
+	private static Packet read(MappedByteBuffer w, int at) {
+		int kind = w.getInt(at);
+		if ((kind & 0xFF) == PacketTrace.CONFIG) {
+			return new Packet(new Config(w.getInt(at + 4), (kind & PacketTrace.PNG) != 0,
+					(kind & PacketTrace.ACCEPTING) != 0, w.getInt(at + 8), w.getInt(at + 12)));
+		}
+		return new Packet(new Header(w.getInt(at + 4), w.getInt(at + 8), w.getInt(at + 12),
+				w.getInt(at + 16), w.getInt(at + 20)), new Body(w.getLong(at + 24), w.getLong(at + 32)));
+	}
+
+	public Packet getConfigPacket() {
+		if (next >= warmup) {
+			throw new IllegalStateException("trace has only " + warmup + " warmup config packets");
+		}
+		int at = locate(next++);
+		if ((window.getInt(at) & 0xFF) != PacketTrace.CONFIG) {
+			throw new IllegalStateException("warmup record " + (next - 1) + " is not a config packet");
+		}
+		return read(window, at);
+	}
+
+	public Packet getPacket() {
+		int at = nextTimed();
+		return read(window, at);
+	}
+
+	public void getPacket(PacketRing ring, int slot) {
+		int at = nextTimed();
+		MappedByteBuffer w = window;
+		int kind = w.getInt(at);
+		if ((kind & 0xFF) == PacketTrace.CONFIG) {
+			ring.type[slot] = PacketRing.CONFIG;
+			ring.configAddress[slot] = w.getInt(at + 4);
+			ring.personaNonGrata[slot] = (kind & PacketTrace.PNG) != 0;
+			ring.acceptingRange[slot] = (kind & PacketTrace.ACCEPTING) != 0;
+			ring.addressBegin[slot] = w.getInt(at + 8);
+			ring.addressEnd[slot] = w.getInt(at + 12);
+		} else {
+			ring.type[slot] = PacketRing.DATA;
+			ring.source[slot] = w.getInt(at + 4);
+			ring.dest[slot] = w.getInt(at + 8);
+			ring.sequenceNumber[slot] = w.getInt(at + 12);
+			ring.trainSize[slot] = w.getInt(at + 16);
+			ring.tag[slot] = w.getInt(at + 20);
+			ring.iterations[slot] = w.getLong(at + 24);
+			ring.seed[slot] = w.getLong(at + 32);
+		}
+	}
+
+	public void close() throws IOException {
+		channel.close();
+	}
+}
+
+class PacketTraceRecorder {
+	/*
+	 * Records a trace for the firewall mains:
+	 *   PacketTraceRecorder <file> <packets> <the 10 generator arguments of the firewalls>
+	 * The warmup section holds as many config packets as the mains draw before their timed
+	 * run, so replaying with -Dfirewall.trace=<file> feeds them the same traffic the
+	 * generator would have.
+	 */
+	public static void main(String[] args) throws IOException {
+		Path path = Paths.get(args[0]);
+		long packets = Long.parseLong(args[1]);
+		int numAddressLog = Integer.parseInt(args[2]);
+		PacketGenerator source = new PacketGenerator(numAddressLog,
+				Integer.parseInt(args[3]),
+				Integer.parseInt(args[4]),
+				Integer.parseInt(args[5]),
+				Integer.parseInt(args[6]),
+				Integer.parseInt(args[7]),
+				Integer.parseInt(args[8]),
+				Float.parseFloat(args[9]),
+				Float.parseFloat(args[10]),
+				Float.parseFloat(args[11]));
+		source.setFastExponential(Boolean.getBoolean("firewall.fastExp"));
+		StopWatch timer = new StopWatch();
+		timer.startTimer();
+		PacketTrace.record(source, path, PacketTrace.warmupPackets(numAddressLog), packets);
+		timer.stopTimer();
+		System.out.println("recorded " + packets + " packets to " + path + " in " + timer.getElapsedTime() + " ms");
+	}
+}
+
+class PacketTraceTest {
+	/*
+	 * Records a small trace with tiny mapping windows and checks that replay, in both object
+	 * and slot mode, reproduces the generator's packets and wraps around at the end.
+	 */
+	public static void main(String[] args) throws IOException {
+		Path path = java.nio.file.Files.createTempFile("packets", ".trace");
+		int warmup = 50;
+		int packets = 1000;
+		PacketTrace.record(new PacketGenerator(5, 4, 5, 4, 5, 3, 3000, 0.1d, 0.2d, 0.8d), path, warmup, packets);
+		PacketGenerator expected = new PacketGenerator(5, 4, 5, 4, 5, 3, 3000, 0.1d, 0.2d, 0.8d);
+		PacketRing ring = new PacketRing(1);
+		int mismatches = 0;
+		try (PacketTraceReader replay = new PacketTraceReader(path, 7)) {
+			for (int i = 0; i < warmup; i++) {
+				mismatches += same(expected.getConfigPacket(), replay.getConfigPacket()) ? 0 : 1;
+			}
+			for (int i = 0; i < packets; i++) {
+				Packet pkt = expected.getPacket();
+				if (i % 2 == 0) {
+					mismatches += same(pkt, replay.getPacket()) ? 0 : 1;
+				} else {
+					replay.getPacket(ring, 0);
+					mismatches += same(pkt, ring, 0) ? 0 : 1;
+				}
+			}
+			PacketGenerator again = new PacketGenerator(5, 4, 5, 4, 5, 3, 3000, 0.1d, 0.2d, 0.8d);
+			for (int i = 0; i < warmup; i++) {
+				again.getConfigPacket();
+			}
+			mismatches += same(again.getPacket(), replay.getPacket()) ? 0 : 1;
+		}
+		java.nio.file.Files.delete(path);
+		System.out.println(mismatches == 0 ? "trace replay matches generator" : mismatches + " mismatches");
+		if (mismatches != 0) {
+			System.exit(1);
+		}
+	}
+
+	static boolean same(Packet a, Packet b) {
+		if (a.type != b.type) {
+			return false;
+		}
+		if (a.type == Packet.MessageType.ConfigPacket) {
+			return a.config.address == b.config.address && a.config.personaNonGrata == b.config.personaNonGrata
+					&& a.config.acceptingRange == b.config.acceptingRange
+					&& a.config.addressBegin == b.config.addressBegin && a.config.addressEnd == b.config.addressEnd;
+		}
+		return a.header.source == b.header.source && a.header.dest == b.header.dest
+				&& a.header.sequenceNumber == b.header.sequenceNumber && a.header.trainSize == b.header.trainSize
+				&& a.header.tag == b.header.tag && a.body.iterations == b.body.iterations && a.body.seed == b.body.seed;
+	}
+
+	static boolean same(Packet a, PacketRing ring, int slot) {
+		if (a.type == Packet.MessageType.ConfigPacket) {
+			return ring.type[slot] == PacketRing.CONFIG && a.config.address == ring.configAddress[slot]
+					&& a.config.personaNonGrata == ring.personaNonGrata[slot]
+					&& a.config.acceptingRange == ring.acceptingRange[slot]
+					&& a.config.addressBegin == ring.addressBegin[slot] && a.config.addressEnd == ring.addressEnd[slot];
+		}
+		return ring.type[slot] == PacketRing.DATA && a.header.source == ring.source[slot]
+				&& a.header.dest == ring.dest[slot] && a.header.sequenceNumber == ring.sequenceNumber[slot]
+				&& a.header.trainSize == ring.trainSize[slot] && a.header.tag == ring.tag[slot]
+				&& a.body.iterations == ring.iterations[slot] && a.body.seed == ring.seed[slot];
+	}
+}
@@ -48,4 +48,51 @@ class PaddedPrimitive<T> {
     }
   }
   
-  
\ No newline at end of file
+  
+  class PaddedCounter extends PaddedCounterValue {
+    /**
+     * A counter written by one thread and read by others, alone on its cache line. The owner
+     * publishes with `set`; readers see a recent value through `get`.
+     */
+    long pad11, pad12, pad13, pad14, pad15, pad16, pad17, pad18;
+
+    void set(long value) {
+      VALUE.setOpaque(this, value);
+    }
+
+    long get() {
+      return (long) VALUE.getOpaque(this);
+    }
+
+    static long sum(PaddedCounter[] counters) {
+      long total = 0;
+      for (PaddedCounter c : counters) {
+        total += c.get();
+      }
+      return total;
+    }
+
+    static PaddedCounter[] create(int count) {
+      PaddedCounter[] counters = new PaddedCounter[count];
+      for (int i = 0; i < count; i++) {
+        counters[i] = new PaddedCounter();
+      }
+      return counters;
+    }
+  }
+
+  abstract class PaddedCounterPad {
+    long pad1, pad2, pad3, pad4, pad5, pad6, pad7, pad8;
+  }
+
+  abstract class PaddedCounterValue extends PaddedCounterPad {
+    static final java.lang.invoke.VarHandle VALUE;
+    static {
+      try {
+        VALUE = java.lang.invoke.MethodHandles.lookup().findVarHandle(PaddedCounterValue.class, "value", long.class);
+      } catch (ReflectiveOperationException e) {
+        throw new ExceptionInInitializerError(e);
+      }
+    }
+    long value;
+  }
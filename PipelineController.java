@@ -0,0 +1,197 @@
+import java.util.ArrayList;
+import java.util.List;
+
+class PipelineController implements Runnable {
+    /**
+     * Retunes an adaptive PipelineFirewall while it runs. Every `periodMillis` it samples
+     * how full the head and cache-miss queues are, how many packets each stage finished
+     * and which fraction of them were cache misses, and then
+     *
+     *  - moves one worker from the head role to the cache-miss role (or back) when the
+     *    queues of one role have been fuller than the other's by more than IMBALANCE for
+     *    two samples in a row, keeping at least one worker in each role;
+     *  - hill-climbs the dispatcher's in-flight limit: after every CLIMB_SAMPLES samples
+     *    without a role change it compares the throughput with that of the previous climb
+     *    step, keeps going in the same direction if it improved and otherwise turns around
+     *    with half the step.
+     *
+     * The queue capacities themselves are fixed once the queues exist; the in-flight limit
+     * is what bounds how much of them is used.
+     */
+    static final double IMBALANCE = 0.25d;
+    static final int CLIMB_SAMPLES = 5;
+    static final int MIN_LIMIT = 16;
+    static final int MAX_LIMIT = 4096;
+    static final int MIN_STEP = 8;
+
+    final PaddedPrimitiveNonVolatile<Boolean> done;
+    final Dispatcher dispatcher;
+    final AdaptiveWorker[] workers;
+    final WorkerStats[] headStats;
+    final WorkerStats[] cacheMissStats;
+    final int periodMillis;
+
+    int limit;
+    int step = 64;
+    int direction = 1;
+    int moves = 0;
+    int climbs = 0;
+    int leaning = 0; // +n: head queues fuller for n samples, -n: cache-miss queues
+    int samplesSinceChange = 0;
+    long climbStartProcessed;
+    long climbStartTime;
+    double lastClimbThroughput = -1;
+
+    // last sample, for the report
+    double headOccupancy;
+    double cacheMissOccupancy;
+    double missRate;
+    double headRate;
+    double cacheMissRate;
+
+    public PipelineController(PaddedPrimitiveNonVolatile<Boolean> done,
+    Dispatcher dispatcher,
+    AdaptiveWorker[] workers,
+    WorkerStats[] headStats,
+    WorkerStats[] cacheMissStats,
+    int periodMillis) {
+        this.done = done;
+        this.dispatcher = dispatcher;
+        this.workers = workers;
+        this.headStats = headStats;
+        this.cacheMissStats = cacheMissStats;
+        this.periodMillis = periodMillis;
+        this.limit = dispatcher.inFlightLimit;
+        publish();
+    }
+
+    @Override
+    public void run() {
+        long headProcessed = WorkerStats.totalProcessed(headStats);
+        long cacheMissProcessed = WorkerStats.totalProcessed(cacheMissStats);
+        long time = System.nanoTime();
+        climbStartProcessed = headProcessed + cacheMissProcessed;
+        climbStartTime = time;
+        while (!done.value) {
+            try {
+                Thread.sleep(periodMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long nowHead = WorkerStats.totalProcessed(headStats);
+            long nowCacheMiss = WorkerStats.totalProcessed(cacheMissStats);
+            long now = System.nanoTime();
+            double millis = Math.max(1e-3, (now - time) / 1e6);
+            headRate = (nowHead - headProcessed) / millis;
+            cacheMissRate = (nowCacheMiss - cacheMissProcessed) / millis;
+            missRate = headRate + cacheMissRate > 0 ? cacheMissRate / (headRate + cacheMissRate) : 0;
+            headProcessed = nowHead;
+            cacheMissProcessed = nowCacheMiss;
+            time = now;
+            sample(now, nowHead + nowCacheMiss);
+        }
+    }
+
+    private void sample(long now, long processed) {
+        headOccupancy = occupancy(AdaptiveWorker.HEAD);
+        cacheMissOccupancy = occupancy(AdaptiveWorker.CACHE_MISS);
+        double difference = headOccupancy - cacheMissOccupancy;
+        leaning = difference > IMBALANCE ? Math.max(1, leaning + 1)
+            : difference < -IMBALANCE ? Math.min(-1, leaning - 1) : 0;
+        if (leaning >= 2 && count(AdaptiveWorker.CACHE_MISS) > 1) {
+            move(AdaptiveWorker.CACHE_MISS, AdaptiveWorker.HEAD);
+        } else if (leaning <= -2 && count(AdaptiveWorker.HEAD) > 1) {
+            move(AdaptiveWorker.HEAD, AdaptiveWorker.CACHE_MISS);
+        } else if (++samplesSinceChange >= CLIMB_SAMPLES) {
+            climb(now, processed);
+            return;
+        } else {
+            return;
+        }
+        // a role change makes the throughput incomparable with the previous climb step
+        leaning = 0;
+        samplesSinceChange = 0;
+        lastClimbThroughput = -1;
+        climbStartProcessed = processed;
+        climbStartTime = now;
+    }
+
+    private void climb(long now, long processed) {
+        double throughput = (processed - climbStartProcessed) / Math.max(1e-3, (now - climbStartTime) / 1e6);
+        if (lastClimbThroughput >= 0 && throughput < lastClimbThroughput) {
+            direction = -direction;
+            step = Math.max(MIN_STEP, step / 2);
+        }
+        lastClimbThroughput = throughput;
+        limit = Math.max(MIN_LIMIT, Math.min(MAX_LIMIT, limit + direction * step));
+        dispatcher.setInFlightLimit(limit);
+        climbs++;
+        samplesSinceChange = 0;
+        climbStartProcessed = processed;
+        climbStartTime = now;
+    }
+
+    // mean fill level of the queues the workers of `role` serve
+    private double occupancy(int role) {
+        double sum = 0;
+        int n = 0;
+        for (AdaptiveWorker w : workers) {
+            if (w.role != role) {
+                continue;
+            }
+            RingQueue<Packet> queue = role == AdaptiveWorker.HEAD ? w.head.myQueue : w.cacheMiss.myQueue;
+            sum += (double) queue.size() / queue.capacity();
+            n++;
+        }
+        return n == 0 ? 0 : sum / n;
+    }
+
+    private int count(int role) {
+        int n = 0;
+        for (AdaptiveWorker w : workers) {
+            n += w.role == role ? 1 : 0;
+        }
+        return n;
+    }
+
+    private void move(int from, int to) {
+        for (int i = workers.length - 1; i >= 0; i--) {
+            if (workers[i].role == from) {
+                workers[i].role = to;
+                moves++;
+                publish();
+                return;
+            }
+        }
+    }
+
+    /*
+     * Points the dispatcher at the head queues and every worker at the cache-miss queues
+     * of the workers currently in those roles.
+     */
+    @SuppressWarnings("unchecked")
+    private void publish() {
+        List<RingQueue<Packet>> headQueues = new ArrayList<>();
+        List<RingQueue<Packet>> cacheMissQueues = new ArrayList<>();
+        for (AdaptiveWorker w : workers) {
+            if (w.role == AdaptiveWorker.HEAD) {
+                headQueues.add(w.head.myQueue);
+            } else {
+                cacheMissQueues.add(w.cacheMiss.myQueue);
+            }
+        }
+        RingQueue<Packet>[] missQueues = cacheMissQueues.toArray(RingQueue.<Packet>array(0));
+        for (AdaptiveWorker w : workers) {
+            w.head.setCacheMissQueues(missQueues);
+        }
+        dispatcher.setQueues(headQueues.toArray(RingQueue.<Packet>array(0)));
+    }
+
+    String report() {
+        return String.format("adaptive: %d head workers, %d cache-miss workers, in-flight limit %d"
+            + " (%d role moves, %d limit steps); last sample: head queues %.0f%% full, cache-miss queues"
+            + " %.0f%% full, %.1f%% cache misses, %.1f + %.1f pkts/ms",
+            count(AdaptiveWorker.HEAD), count(AdaptiveWorker.CACHE_MISS), limit, moves, climbs,
+            100 * headOccupancy, 100 * cacheMissOccupancy, 100 * missRate, headRate, cacheMissRate);
+    }
+}
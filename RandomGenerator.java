@@ -39,26 +39,84 @@ class ExponentialGenerator {
   final RandomGenerator randGen;
   final double logBase = 20.795; // ln(2^30 - 1)
   final int base = 1073741824; // 2^30
+  /*
+   * With `fast` set, draws take the logarithm from a table (see fastLog) instead of
+   * Math.log. They consume the same random numbers in the same order, and before rounding
+   * up they differ from the exact draws by at most 1.2e-7 * mean, so a draw is either
+   * identical or one off, the latter only when the exact value lies that close to an integer.
+   */
+  boolean fast;
   public ExponentialGenerator(double mean) {
     this.mean = mean;
     randGen = new RandomGenerator();
   }
+  public ExponentialGenerator(double mean, int seed) {
+    this(mean, seed, false);
+  }
+  public ExponentialGenerator(double mean, int seed, boolean fast) {
+    this.mean = mean;
+    this.fast = fast;
+    randGen = new RandomGenerator(seed);
+  }
   int getRand() {
-    return (int) Math.ceil(mean*(logBase-Math.log(base-randGen.getRand())));
+    return getRand(mean);
   }
   int getRand(double meanTmp) {
+    if( fast )
+      return ceil(meanTmp*(logBase-fastLog(base-randGen.getRand())));
     return (int) Math.ceil(meanTmp*(logBase-Math.log(base-randGen.getRand())));
   }
+
+  private static final int LOG_TABLE_BITS = 10;
+  private static final double LN2 = Math.log(2.0d);
+  // LOG_TABLE[i] = ln(1 + i / 2^LOG_TABLE_BITS), one extra entry for interpolation
+  private static final double[] LOG_TABLE = new double[(1 << LOG_TABLE_BITS) + 1];
+  static {
+    for( int i = 0; i < LOG_TABLE.length; i++ )
+      LOG_TABLE[i] = Math.log1p((double) i / (1 << LOG_TABLE_BITS));
+  }
+  /*
+   * ln(x) = e * ln 2 + ln(1 + f) for x = 2^e * (1 + f); ln(1 + f) is interpolated linearly
+   * between table entries 2^-10 apart, which is off by at most (2^-10)^2 / 8 < 1.2e-7.
+   * Non-positive x (possible when the random int exceeds 2^30) goes to Math.log so that it
+   * keeps its NaN / -Infinity.
+   */
+  static double fastLog(int x) {
+    if( x <= 0 )
+      return Math.log(x);
+    int shift = Integer.numberOfLeadingZeros(x);
+    int normalized = x << shift; // leading one at bit 31
+    int index = (normalized >>> (31 - LOG_TABLE_BITS)) & ((1 << LOG_TABLE_BITS) - 1);
+    double t = (normalized & ((1 << (31 - LOG_TABLE_BITS)) - 1)) * (1.0d / (1 << (31 - LOG_TABLE_BITS)));
+    double lo = LOG_TABLE[index];
+    return (31 - shift) * LN2 + lo + t * (LOG_TABLE[index + 1] - lo);
+  }
+  // (int) Math.ceil(v), including NaN -> 0 and saturation
+  private static int ceil(double v) {
+    int r = (int) v;
+    return r < v ? r + 1 : r;
+  }
   public int mangle(int seed) { return randGen.mangle(seed); }
 }
 
 class RandomGenerator {
+  static final int DEFAULT_SEED = 59009;
   int seed;
   public RandomGenerator(int seed) {
     this.seed = seed;
   }
   public RandomGenerator() {
-    this.seed = 59009;
+    this.seed = DEFAULT_SEED;
+  }
+  /*
+   * Starting seed for random stream `stream` of generator shard `shard`. Shard 0 keeps the
+   * default seed for every stream, so an unsharded generator is unchanged; other shards start
+   * each stream from a distinct scrambled seed.
+   */
+  static int shardSeed(int shard, int stream) {
+    if( shard == 0 )
+      return DEFAULT_SEED;
+    return new RandomGenerator().mangle((DEFAULT_SEED + 7919 * stream) ^ (shard * 0x9E3779B9)) + 1;
   }
   int getRand() {
     seed = mangle(seed) + 1;
@@ -67,7 +125,24 @@ class RandomGenerator {
   void setSeed(int seed) {
     this.seed = seed;
   }
-  public int mangle(int seed) { 
+  /*
+   * mangleSerial is linear over GF(2) (a shift, arithmetic or not, and an xor of a constant
+   * selected by the low bit), so the 31 steps can be applied one byte at a time: the result
+   * is the xor of the images of the four bytes of the seed, read from four 256-entry tables.
+   */
+  private static final int[][] MANGLE_TABLES = new int[4][256];
+  static {
+    for( int k = 0; k < 4; k++ )
+      for( int b = 0; b < 256; b++ )
+        MANGLE_TABLES[k][b] = mangleSerial(b << (8 * k));
+  }
+  public int mangle(int seed) {
+    final int[] t0 = MANGLE_TABLES[0], t1 = MANGLE_TABLES[1],
+      t2 = MANGLE_TABLES[2], t3 = MANGLE_TABLES[3];
+    return t0[seed & 0xFF] ^ t1[(seed >>> 8) & 0xFF]
+      ^ t2[(seed >>> 16) & 0xFF] ^ t3[seed >>> 24];
+  }
+  static int mangleSerial(int seed) { 
     final int CRC_POLY = 954680065; // 0x38E74301 - standard CRC30 from CDMA
     final int iterations = 31;
     int crc = seed;
@@ -81,3 +156,129 @@ class RandomGenerator {
   }
 }
 
+
+class MangleTest {
+  /*
+   * Checks the table-driven mangle against the bit-serial loop: every single-bit seed, the
+   * ends of the range and a strided sample of all seeds (every seed with `exhaustive` as the
+   * first argument), then times both.
+   */
+  public static void main(String[] args) {
+    boolean exhaustive = args.length > 0 && args[0].equals("exhaustive");
+    RandomGenerator gen = new RandomGenerator();
+    long mismatches = 0;
+    long checked = 0;
+    int[] edges = { 0, 1, -1, Integer.MAX_VALUE, Integer.MIN_VALUE, RandomGenerator.DEFAULT_SEED };
+    for( int seed : edges ) {
+      mismatches += gen.mangle(seed) != RandomGenerator.mangleSerial(seed) ? 1 : 0;
+      checked++;
+    }
+    for( int bit = 0; bit < 32; bit++ ) {
+      mismatches += gen.mangle(1 << bit) != RandomGenerator.mangleSerial(1 << bit) ? 1 : 0;
+      checked++;
+    }
+    long stride = exhaustive ? 1 : 4093;
+    for( long s = Integer.MIN_VALUE; s <= Integer.MAX_VALUE; s += stride ) {
+      int seed = (int) s;
+      if( gen.mangle(seed) != RandomGenerator.mangleSerial(seed) ) {
+        if( mismatches < 10 )
+          System.out.println("mismatch: seed " + seed);
+        mismatches++;
+      }
+      checked++;
+    }
+    System.out.println(checked + " seeds checked, " + mismatches + " mismatches");
+    if( mismatches != 0 )
+      System.exit(1);
+
+    final int n = 1 << 24;
+    for( int round = 0; round < 3; round++ ) {
+      int x = 1;
+      long start = System.nanoTime();
+      for( int i = 0; i < n; i++ )
+        x = RandomGenerator.mangleSerial(x) + 1;
+      long serial = System.nanoTime() - start;
+      int y = 1;
+      start = System.nanoTime();
+      for( int i = 0; i < n; i++ )
+        y = gen.mangle(y) + 1;
+      long table = System.nanoTime() - start;
+      if( x != y )
+        throw new AssertionError("chains diverged");
+      System.out.printf("serial %.2f ns/call, table %.2f ns/call%n",
+        (double) serial / n, (double) table / n);
+    }
+  }
+}
+
+class ExponentialGeneratorTest {
+  /*
+   * Draws the same stream from the exact and the table-driven sampler for a few means and
+   * compares them draw by draw, by moments and by quantiles; then times both.
+   */
+  public static void main(String[] args) {
+    final int n = 1 << 20;
+    double[] means = { 1.0d, 5.0d, 315.0d, 3822.0d, 8840.0d };
+    boolean ok = true;
+    for( double mean : means ) {
+      ExponentialGenerator exact = new ExponentialGenerator(mean, RandomGenerator.DEFAULT_SEED, false);
+      ExponentialGenerator fast = new ExponentialGenerator(mean, RandomGenerator.DEFAULT_SEED, true);
+      int[] a = new int[n];
+      int[] b = new int[n];
+      int differing = 0;
+      int maxDiff = 0;
+      for( int i = 0; i < n; i++ ) {
+        a[i] = exact.getRand();
+        b[i] = fast.getRand();
+        int diff = Math.abs(a[i] - b[i]);
+        differing += diff != 0 ? 1 : 0;
+        maxDiff = Math.max(maxDiff, diff);
+      }
+      double[] ma = moments(a);
+      double[] mb = moments(b);
+      java.util.Arrays.sort(a);
+      java.util.Arrays.sort(b);
+      System.out.printf("mean %.0f: %d of %d draws differ (max %d); mean %.4f vs %.4f, stddev %.4f vs %.4f%n",
+        mean, differing, n, maxDiff, ma[0], mb[0], ma[1], mb[1]);
+      double[] qs = { 0.5d, 0.9d, 0.99d, 0.999d };
+      for( double q : qs ) {
+        int i = (int) (q * (n - 1));
+        System.out.printf("  p%s %d vs %d%n", q * 100, a[i], b[i]);
+        ok &= Math.abs(a[i] - b[i]) <= 1;
+      }
+      ok &= maxDiff <= 1;
+      ok &= Math.abs(ma[0] - mb[0]) <= 1.0d && Math.abs(ma[1] - mb[1]) <= 1.0d;
+    }
+    for( int x = 1; x > 0 && x < Integer.MAX_VALUE / 3; x = x * 3 + 1 ) {
+      ok &= Math.abs(ExponentialGenerator.fastLog(x) - Math.log(x)) < 1.2e-7;
+    }
+    System.out.println(ok ? "exponential samplers agree" : "exponential samplers DIFFER");
+    if( !ok )
+      System.exit(1);
+
+    for( int round = 0; round < 3; round++ ) {
+      long sum = 0;
+      ExponentialGenerator exact = new ExponentialGenerator(3822.0d, 1, false);
+      long start = System.nanoTime();
+      for( int i = 0; i < n; i++ )
+        sum += exact.getRand();
+      long exactTime = System.nanoTime() - start;
+      ExponentialGenerator fast = new ExponentialGenerator(3822.0d, 1, true);
+      start = System.nanoTime();
+      for( int i = 0; i < n; i++ )
+        sum -= fast.getRand();
+      long fastTime = System.nanoTime() - start;
+      System.out.printf("exact %.2f ns/draw, fast %.2f ns/draw (checksum %d)%n",
+        (double) exactTime / n, (double) fastTime / n, sum);
+    }
+  }
+  static double[] moments(int[] xs) {
+    double sum = 0, sumSq = 0;
+    for( int x : xs ) {
+      sum += x;
+      sumSq += (double) x * x;
+    }
+    double mean = sum / xs.length;
+    return new double[] { mean, Math.sqrt(sumSq / xs.length - mean * mean) };
+  }
+}
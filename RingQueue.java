@@ -0,0 +1,281 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+public class RingQueue<T> extends RingQueuePad3 {
+    /**
+     * Bounded multi-producer single-consumer ring queue. Full and empty are reported
+     * through return values (`offer` returns false, `poll` returns null) rather than
+     * exceptions, so the spin loops of the workers never build a stack trace.
+     *
+     * Producers claim slots by CASing `producerIndex` and then release-store the item into
+     * the slot; the consumer acquire-loads the slot and treats null as "not there yet", so it
+     * never has to read the producers' index. Producers in turn only re-read the consumer's
+     * index once they run past `producerLimit`, their cached view of how far they may go.
+     * The three indices live on separate cache lines (see the superclasses), and the
+     * capacity is rounded up to a power of two so slots are found by masking.
+     *
+     * A consumer that may sleep when the queue is empty registers its WaitStrategy with
+     * `setConsumerWaiter`; producers then wake it after every enqueue.
+     */
+    private static final VarHandle SLOTS = MethodHandles.arrayElementVarHandle(Object[].class);
+
+    final Object[] items;
+    final int mask;
+    WaitStrategy consumerWaiter; // set before the producers start
+
+    public RingQueue(int capacity) {
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        items = new Object[size];
+        mask = size - 1;
+        producerLimit = size;
+    }
+
+    // an array of `length` queues, which Java cannot create for a generic type directly
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    static <T> RingQueue<T>[] array(int length) {
+        return new RingQueue[length];
+    }
+
+    public int capacity() {
+        return items.length;
+    }
+
+    public boolean offer(T x) {
+        long limit = producerLimit;
+        long index;
+        do {
+            index = producerIndex;
+            if (index >= limit) {
+                limit = consumerIndexAcquire() + items.length;
+                if (index >= limit) {
+                    return false;
+                }
+                producerLimit = limit;
+            }
+        } while (!casProducerIndex(index, index + 1));
+        SLOTS.setRelease(items, (int) index & mask, x);
+        wakeConsumer();
+        return true;
+    }
+
+    /*
+     * Enqueues as many of xs[offset .. offset+count) as fit with a single claim and returns
+     * how many were enqueued.
+     */
+    public int offerBatch(T[] xs, int offset, int count) {
+        if (count <= 0) {
+            return 0;
+        }
+        long limit = producerLimit;
+        long index;
+        int claimed;
+        do {
+            index = producerIndex;
+            if (index + count > limit) {
+                limit = consumerIndexAcquire() + items.length;
+                if (index >= limit) {
+                    return 0;
+                }
+                producerLimit = limit;
+            }
+            claimed = (int) Math.min(count, limit - index);
+        } while (!casProducerIndex(index, index + claimed));
+        for (int i = 0; i < claimed; i++) {
+            SLOTS.setRelease(items, (int) (index + i) & mask, xs[offset + i]);
+        }
+        wakeConsumer();
+        return claimed;
+    }
+
+    public void setConsumerWaiter(WaitStrategy waiter) {
+        consumerWaiter = waiter;
+    }
+
+    private void wakeConsumer() {
+        WaitStrategy waiter = consumerWaiter;
+        if (waiter != null) {
+            waiter.wake();
+        }
+    }
+
+    /*
+     * Only the owning consumer may call poll and drainTo.
+     */
+    @SuppressWarnings("unchecked")
+    public T poll() {
+        long index = consumerIndex;
+        int offset = (int) index & mask;
+        Object x = SLOTS.getAcquire(items, offset);
+        if (x == null) {
+            return null;
+        }
+        items[offset] = null;
+        setConsumerIndexRelease(index + 1);
+        return (T) x;
+    }
+
+    /*
+     * Moves up to `max` items into `out` starting at 0, publishing the consumer index once
+     * for the whole batch. Returns the number of items moved.
+     */
+    @SuppressWarnings("unchecked")
+    public int drainTo(T[] out, int max) {
+        long index = consumerIndex;
+        int n = 0;
+        int limit = Math.min(max, out.length);
+        while (n < limit) {
+            int offset = (int) (index + n) & mask;
+            Object x = SLOTS.getAcquire(items, offset);
+            if (x == null) {
+                break;
+            }
+            items[offset] = null;
+            out[n++] = (T) x;
+        }
+        if (n > 0) {
+            setConsumerIndexRelease(index + n);
+        }
+        return n;
+    }
+
+    /*
+     * Approximate number of queued items; exact when no one is enqueueing or dequeueing.
+     */
+    public int size() {
+        long size = producerIndex - consumerIndexAcquire();
+        return (int) Math.max(0, Math.min(size, items.length));
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+}
+
+abstract class RingQueuePad0 {
+    long pad01, pad02, pad03, pad04, pad05, pad06, pad07, pad08;
+}
+
+abstract class RingQueueProducerIndex extends RingQueuePad0 {
+    private static final VarHandle PRODUCER_INDEX;
+    static {
+        try {
+            PRODUCER_INDEX = MethodHandles.lookup().findVarHandle(RingQueueProducerIndex.class, "producerIndex", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+    volatile long producerIndex;
+
+    final boolean casProducerIndex(long expected, long next) {
+        return PRODUCER_INDEX.compareAndSet(this, expected, next);
+    }
+}
+
+abstract class RingQueuePad1 extends RingQueueProducerIndex {
+    long pad11, pad12, pad13, pad14, pad15, pad16, pad17, pad18;
+}
+
+abstract class RingQueueProducerLimit extends RingQueuePad1 {
+    volatile long producerLimit; // cached consumerIndex + capacity, shared by the producers
+}
+
+abstract class RingQueuePad2 extends RingQueueProducerLimit {
+    long pad21, pad22, pad23, pad24, pad25, pad26, pad27, pad28;
+}
+
+abstract class RingQueueConsumerIndex extends RingQueuePad2 {
+    private static final VarHandle CONSUMER_INDEX;
+    static {
+        try {
+            CONSUMER_INDEX = MethodHandles.lookup().findVarHandle(RingQueueConsumerIndex.class, "consumerIndex", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+    long consumerIndex; // written only by the consumer
+
+    final long consumerIndexAcquire() {
+        return (long) CONSUMER_INDEX.getAcquire(this);
+    }
+
+    final void setConsumerIndexRelease(long index) {
+        CONSUMER_INDEX.setRelease(this, index);
+    }
+}
+
+abstract class RingQueuePad3 extends RingQueueConsumerIndex {
+    long pad31, pad32, pad33, pad34, pad35, pad36, pad37, pad38;
+}
+
+class IntRingQueue extends RingQueuePad3 {
+    /**
+     * The int flavour of RingQueue, for passing packet slot indices around without boxing.
+     * Same multi-producer single-consumer protocol; a slot holds value + 1 so that 0 can
+     * mean "not there yet", which limits values to non-negative ints. `poll` returns -1
+     * when the queue is empty.
+     */
+    private static final VarHandle SLOTS = MethodHandles.arrayElementVarHandle(int[].class);
+
+    final int[] items;
+    final int mask;
+    WaitStrategy consumerWaiter; // set before the producers start
+
+    public IntRingQueue(int capacity) {
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        items = new int[size];
+        mask = size - 1;
+        producerLimit = size;
+    }
+
+    public int capacity() {
+        return items.length;
+    }
+
+    public boolean offer(int x) {
+        long limit = producerLimit;
+        long index;
+        do {
+            index = producerIndex;
+            if (index >= limit) {
+                limit = consumerIndexAcquire() + items.length;
+                if (index >= limit) {
+                    return false;
+                }
+                producerLimit = limit;
+            }
+        } while (!casProducerIndex(index, index + 1));
+        SLOTS.setRelease(items, (int) index & mask, x + 1);
+        WaitStrategy waiter = consumerWaiter;
+        if (waiter != null) {
+            waiter.wake();
+        }
+        return true;
+    }
+
+    public void setConsumerWaiter(WaitStrategy waiter) {
+        consumerWaiter = waiter;
+    }
+
+    public int poll() {
+        long index = consumerIndex;
+        int offset = (int) index & mask;
+        int x = (int) SLOTS.getAcquire(items, offset);
+        if (x == 0) {
+            return -1;
+        }
+        items[offset] = 0;
+        setConsumerIndexRelease(index + 1);
+        return x - 1;
+    }
+
+    public int size() {
+        long size = producerIndex - consumerIndexAcquire();
+        return (int) Math.max(0, Math.min(size, items.length));
+    }
+}
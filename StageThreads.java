@@ -0,0 +1,57 @@
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.ThreadFactory;
+
+class StageThreads {
+    /**
+     * Creates the threads that run the pipeline stages. In PLATFORM mode every stage gets
+     * its own OS thread, as it always has. In VIRTUAL mode the stages run as virtual threads,
+     * which a stage that parks (see WaitStrategy.PARK) unmounts from its carrier, so far more
+     * workers than cores can share a few carriers. The number of carriers is the JDK's
+     * `jdk.virtualThreadScheduler.parallelism`, which `carriers` sets when it is positive.
+     *
+     * The build targets Java 17, where virtual threads do not exist yet, so they are created
+     * through reflection; on a JVM without them VIRTUAL falls back to platform threads and
+     * says so on stderr.
+     */
+    static final String PLATFORM = "platform";
+    static final String VIRTUAL = "virtual";
+
+    static ThreadFactory factory(String mode, int carriers) {
+        switch (mode) {
+            case PLATFORM:
+                return Thread::new;
+            case VIRTUAL:
+                if (carriers > 0) {
+                    // read once, when the first virtual thread is started
+                    System.setProperty("jdk.virtualThreadScheduler.parallelism", Integer.toString(carriers));
+                }
+                ThreadFactory factory = virtualThreadFactory();
+                if (factory == null) {
+                    System.err.println("virtual threads are not available on Java "
+                        + System.getProperty("java.version") + ", using platform threads");
+                    return Thread::new;
+                }
+                return factory;
+            default:
+                throw new IllegalArgumentException("Unknown thread mode: " + mode);
+        }
+    }
+
+    // Thread.ofVirtual().name("stage-", 0).factory(), or null without virtual threads
+    static ThreadFactory virtualThreadFactory() {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "stage-", 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ClassNotFoundException | NoSuchMethodException | IllegalAccessException e) {
+            return null;
+        } catch (InvocationTargetException e) {
+            // a preview API that is not enabled throws UnsupportedOperationException
+            if (e.getCause() instanceof UnsupportedOperationException) {
+                return null;
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+}
@@ -0,0 +1,266 @@
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+class StealingPool {
+    /**
+     * Work-stealing execution mode: instead of fixed head and cache-miss workers with one
+     * queue each, every worker of a ForkJoinPool runs both stages. The dispatcher submits
+     * each packet as a HeadTask; a head task that misses the decision cache forks a
+     * CacheMissTask into its worker's own deque. Idle workers take submitted packets and
+     * steal forked cache-miss tasks from busy peers, so a worker stuck on heavy packets no
+     * longer leaves its queue waiting while others spin. The pool runs in async (FIFO)
+     * mode, which suits tasks that are never joined.
+     *
+     * The tasks do the same per-packet work as the queue workers, through PacketWork.
+     * Accounting is the same as in the queue pipeline, too: a packet counts as processed and
+     * released once, by whichever worker finishes it, in that worker's own WorkerStats.
+     * The stats live in a fixed array with one slot per possible worker; a slot is handed to
+     * a new worker thread and returned when the thread ends, which also adds the thread's
+     * CPU and wall time to the pool's totals.
+     */
+    final PaddedPrimitiveNonVolatile<Boolean> done;
+    final HashTable<AddressData> table;
+    final WorkerStats[] stats;
+    final ForkJoinPool pool;
+    private final ConcurrentLinkedQueue<Integer> freeSlots = new ConcurrentLinkedQueue<Integer>();
+    private final AtomicInteger nextSlot = new AtomicInteger();
+    private final LongAdder cpuNanos = new LongAdder();
+    private final LongAdder wallNanos = new LongAdder();
+    private volatile boolean cpuUnsupported = false;
+
+    public StealingPool(PaddedPrimitiveNonVolatile<Boolean> done, HashTable<AddressData> table, int parallelism) {
+        this.done = done;
+        this.table = table;
+        this.stats = WorkerStats.create(parallelism);
+        this.pool = new ForkJoinPool(parallelism, this::newThread, null, true);
+    }
+
+    private ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+        Integer slot = freeSlots.poll();
+        if (slot == null) {
+            int next = nextSlot.getAndIncrement();
+            if (next >= stats.length) {
+                nextSlot.decrementAndGet();
+                return null; // the pool carries on with the workers it has
+            }
+            slot = next;
+        }
+        return new StealingWorkerThread(pool, this, slot);
+    }
+
+    void submit(Packet pkt) {
+        pool.execute(new HeadTask(this, pkt));
+    }
+
+    // drops the packets that are still queued and waits for the running ones
+    void shutdown() {
+        pool.shutdownNow();
+        try {
+            pool.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException ignore) {;}
+    }
+
+    // of the worker threads that have ended; -1 if the JVM cannot measure thread CPU time
+    long cpuNanos() {
+        return cpuUnsupported ? -1 : cpuNanos.sum();
+    }
+
+    long wallNanos() {
+        return wallNanos.sum();
+    }
+
+    static WorkerStats myStats() {
+        return ((StealingWorkerThread) Thread.currentThread()).stats;
+    }
+
+    static final class StealingWorkerThread extends ForkJoinWorkerThread {
+        final StealingPool owner;
+        final int slot;
+        final WorkerStats stats;
+        long cpuStart;
+        long wallStart;
+
+        StealingWorkerThread(ForkJoinPool pool, StealingPool owner, int slot) {
+            super(pool);
+            this.owner = owner;
+            this.slot = slot;
+            this.stats = owner.stats[slot];
+        }
+
+        @Override
+        protected void onStart() {
+            super.onStart();
+            wallStart = System.nanoTime();
+            cpuStart = CpuTimer.currentThreadCpuNanos();
+        }
+
+        @Override
+        protected void onTermination(Throwable exception) {
+            long cpuEnd = CpuTimer.currentThreadCpuNanos();
+            if (cpuStart < 0 || cpuEnd < 0) {
+                owner.cpuUnsupported = true;
+            } else {
+                owner.cpuNanos.add(cpuEnd - cpuStart);
+            }
+            owner.wallNanos.add(System.nanoTime() - wallStart);
+            owner.freeSlots.add(slot);
+            super.onTermination(exception);
+        }
+    }
+}
+
+@SuppressWarnings("serial") // tasks are never serialized
+class HeadTask extends RecursiveAction {
+    final StealingPool owner;
+    final Packet pkt;
+
+    HeadTask(StealingPool owner, Packet pkt) {
+        this.owner = owner;
+        this.pkt = pkt;
+    }
+
+    @Override
+    protected void compute() {
+        WorkerStats stats = StealingPool.myStats();
+        StageLatency latency = stats.latency;
+        long start = 0;
+        if (latency != null) {
+            start = System.nanoTime();
+            latency.record(StageLatency.QUEUE, pkt.dispatchNanos, start);
+        }
+        try {
+            switch (pkt.type) {
+                case ConfigPacket:
+                    PacketWork.applyConfig(owner.table, pkt, stats);
+                    break;
+
+                case DataPacket:
+                    int decision = PacketWork.lookup(owner.table, pkt, stats, start);
+                    if (decision == DecisionCache.MISS) {
+                        // the cache-miss task accounts for the packet, on whichever worker runs it
+                        new CacheMissTask(owner, pkt).fork();
+                        return;
+                    }
+                    if (decision == DecisionCache.ALLOW) {
+                        stats.fingerprint(Fingerprint.getFingerprint(pkt.body.iterations, pkt.body.seed));
+                    }
+                    break;
+            }
+            stats.processed();
+        } catch (Throwable ignore) {
+        }
+        if (latency != null) {
+            long end = System.nanoTime();
+            latency.record(StageLatency.HEAD, start, end);
+            latency.record(StageLatency.END_TO_END, pkt.dispatchNanos, end);
+        }
+        stats.released(1);
+    }
+}
+
+@SuppressWarnings("serial")
+class CacheMissTask extends RecursiveAction {
+    final StealingPool owner;
+    final Packet pkt;
+
+    CacheMissTask(StealingPool owner, Packet pkt) {
+        this.owner = owner;
+        this.pkt = pkt;
+    }
+
+    @Override
+    protected void compute() {
+        PacketWork.decide(owner.table, pkt, StealingPool.myStats());
+    }
+}
+
+class PoolDispatcher implements Runnable {
+    /*
+     * Feeds a StealingPool, keeping at most MAX_PACKETS_IN_FLIGHT packets in it, counted
+     * the same way as the queue Dispatcher does.
+     */
+    PaddedPrimitiveNonVolatile<Boolean> done;
+    final PacketSource source;
+    final StealingPool pool;
+    Packet pkt;
+    long dispatched = 0;
+    long released = 0; // last seen sum of the workers' released counters
+    final PaddedCounter myDispatched = new PaddedCounter(); // `dispatched`, for other threads
+    WaitStrategy waitStrategy = new OnSpinWait();
+    boolean stampPackets = false; // for latency recording
+    OpenLoopSchedule schedule; // null: closed loop, see Dispatcher
+    QueueStallEvent stall; // while the pool holds its limit of packets and the event is enabled
+
+    public PoolDispatcher(PaddedPrimitiveNonVolatile<Boolean> done, PacketSource source, StealingPool pool) {
+        this.done = done;
+        this.source = source;
+        this.pool = pool;
+    }
+
+    void setWaitStrategy(WaitStrategy waitStrategy) {
+        this.waitStrategy = waitStrategy;
+    }
+
+    void setStampPackets(boolean stampPackets) {
+        this.stampPackets = stampPackets;
+    }
+
+    void setSchedule(OpenLoopSchedule schedule) {
+        this.schedule = schedule;
+    }
+
+    long packetsInFlight() {
+        return myDispatched.get() - WorkerStats.totalReleased(pool.stats);
+    }
+
+    @Override
+    public void run() {
+        int idle = 0;
+        while (!done.value) {
+            if (pkt == null) {
+                if (schedule != null) {
+                    long intended = schedule.next();
+                    if (!schedule.await(intended, done)) {
+                        return;
+                    }
+                    pkt = source.getPacket();
+                    pkt.dispatchNanos = intended;
+                } else {
+                    pkt = source.getPacket();
+                }
+            }
+            if (dispatched - released >= Dispatcher.MAX_PACKETS_IN_FLIGHT) {
+                released = WorkerStats.totalReleased(pool.stats);
+                if (dispatched - released >= Dispatcher.MAX_PACKETS_IN_FLIGHT) {
+                    if (++idle == 1) {
+                        stall = QueueStallEvent.begin(QueueStallEvent.DISPATCHER);
+                    }
+                    waitStrategy.idle(idle);
+                    continue;
+                }
+            }
+            resumed(idle);
+            idle = 0;
+            if (stampPackets && schedule == null) {
+                pkt.dispatchNanos = System.nanoTime();
+            }
+            pool.submit(pkt);
+            dispatched++;
+            myDispatched.set(dispatched);
+            pkt = null;
+        }
+        resumed(idle);
+    }
+
+    private void resumed(int idle) {
+        if (stall != null) {
+            stall.end(idle);
+            stall = null;
+        }
+    }
+}
@@ -1,3 +1,7 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+
 class StopWatch {
     long startTime = 0; // nanoseconds
     long stopTime;      // nanoseconds
@@ -22,4 +26,92 @@ class StopWatch {
       return (stopTime - startTime) / 1000000.0;
     }  
   }
-  
\ No newline at end of file
+  
+
+class CpuTimer implements Runnable {
+    /**
+     * Runs a pipeline stage's Runnable and records the CPU time and the wall time of the
+     * thread that ran it, so the CPU a stage burns (spinning included) can be reported
+     * next to its throughput. The CPU time is -1 where the JVM cannot measure it, which
+     * includes virtual threads; the process CPU time still covers those.
+     */
+    final Runnable task;
+    volatile long cpuNanos = -1;
+    volatile long wallNanos = 0;
+
+    CpuTimer(Runnable task) {
+        this.task = task;
+    }
+
+    static CpuTimer[] wrap(Runnable[] tasks) {
+        CpuTimer[] timers = new CpuTimer[tasks.length];
+        for (int i = 0; i < tasks.length; i++) {
+            timers[i] = new CpuTimer(tasks[i]);
+        }
+        return timers;
+    }
+
+    static long currentThreadCpuNanos() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        return threads.isCurrentThreadCpuTimeSupported() ? threads.getCurrentThreadCpuTime() : -1;
+    }
+
+    @Override
+    public void run() {
+        long wallStart = System.nanoTime();
+        long cpuStart = currentThreadCpuNanos();
+        try {
+            task.run();
+        } finally {
+            long cpuEnd = currentThreadCpuNanos();
+            cpuNanos = cpuStart < 0 || cpuEnd < 0 ? -1 : cpuEnd - cpuStart;
+            wallNanos = System.nanoTime() - wallStart;
+        }
+    }
+
+    /*
+     * "<stage> <cpu> ms cpu (<on-cpu>% of its threads' time)", the share being the stage's
+     * CPU time over the summed lifetimes of its threads.
+     */
+    static String report(String stage, long cpuNanos, long wallNanos) {
+        if (cpuNanos < 0) {
+            return stage + " n/a";
+        }
+        return String.format("%s %.1f ms cpu (%.0f%% of its threads' time)", stage, cpuNanos / 1e6,
+            wallNanos > 0 ? 100d * cpuNanos / wallNanos : 0d);
+    }
+
+    // of the whole JVM, compilers and GC included; -1 where the JVM cannot measure it
+    static long processCpuNanos() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+        }
+        return -1;
+    }
+
+    // "process <cpu> ms cpu (<share>% of <n> cores since the JVM started)"
+    static String processReport() {
+        long cpu = processCpuNanos();
+        if (cpu < 0) {
+            return "process n/a";
+        }
+        int cores = Runtime.getRuntime().availableProcessors();
+        long uptime = ManagementFactory.getRuntimeMXBean().getUptime();
+        return String.format("process %.1f ms cpu (%.0f%% of %d cores since the JVM started)", cpu / 1e6,
+            uptime > 0 ? cpu / 1e4 / uptime / cores : 0d, cores);
+    }
+
+    static String report(String stage, CpuTimer[] timers) {
+        long cpu = 0;
+        long wall = 0;
+        for (CpuTimer timer : timers) {
+            if (timer.cpuNanos < 0) {
+                return report(stage, -1, 0);
+            }
+            cpu += timer.cpuNanos;
+            wall += timer.wallNanos;
+        }
+        return report(stage, cpu, wall);
+    }
+}
@@ -0,0 +1,323 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+class Sweep {
+    /**
+     * Scaling sweep over the firewalls, the automated version of results.txt. For every
+     * workload profile it runs SerialFireWall once per trial and PipelineFirewall once per
+     * trial for every combination of head workers, cache-miss workers and queue capacity.
+     * Every run is a fresh JVM, so JIT and heap state never carry over between trials;
+     * `sweep.warmupTrials` extra runs per point are discarded, and inside each run the
+     * firewall itself spends `sweep.warmupMillis` before it starts counting.
+     *
+     * Results are the mean, standard deviation and 95% confidence interval (Student's t)
+     * of throughput in pkts/ms, plus the speedup over the serial mean with an interval from
+     * the delta method. They go to stdout and, with `-Dsweep.out=<file>`, to CSV or JSON
+     * (`-Dsweep.format=csv|json`).
+     *
+     *   java Sweep [profile ...]        profiles are mix1 .. mix8 (default: all of them)
+     *
+     * and more profiles can be defined as -Dsweep.profile.<name>="<the 10 firewall args>".
+     * Other settings: sweep.headWorkers (1,2,4,8), sweep.cacheMissWorkers (4),
+     * sweep.queues (50), sweep.trials (5), sweep.warmupTrials (1), sweep.millis (5000),
+     * sweep.warmupMillis (1000), sweep.serial (true), sweep.threads (platform), the stage
+     * thread modes to compare, e.g. "platform,virtual" (virtual runs show up as firewall
+     * "virtual"), sweep.faithfulWork (true), and sweep.jvmArgs, extra arguments for the forked
+     * JVMs such as "-Dfirewall.batchSize=16 -Xmx2g".
+     *
+     * The forked firewalls run with firewall.faithfulWork, so every packet costs the synthetic
+     * CPU work results.txt was measured with; sweep.faithfulWork=false switches to the
+     * jump-ahead fingerprint instead (see Fingerprint), which makes the work almost free and
+     * measures the pipeline alone. The mode is recorded with every result.
+     */
+    static final Map<String, String> PROFILES = new LinkedHashMap<>();
+    static {
+        PROFILES.put("mix1", "11 12 5 1 3 3 3822 0.24 0.04 0.96");
+        PROFILES.put("mix2", "12 10 1 3 3 1 2644 0.11 0.09 0.92");
+        PROFILES.put("mix3", "12 10 4 3 6 2 1304 0.10 0.03 0.90");
+        PROFILES.put("mix4", "14 10 5 5 6 2 315 0.08 0.05 0.90");
+        PROFILES.put("mix5", "15 15 9 16 7 10 4007 0.02 0.10 0.84");
+        PROFILES.put("mix6", "15 15 9 10 9 9 7125 0.01 0.20 0.77");
+        PROFILES.put("mix7", "15 15 10 13 8 10 5328 0.04 0.18 0.80");
+        PROFILES.put("mix8", "16 14 15 15 9 5 8840 0.04 0.19 0.76");
+    }
+
+    // two-sided 95% quantiles of Student's t for 1 .. 30 degrees of freedom
+    static final double[] T95 = { 12.706, 4.303, 3.182, 2.776, 2.571, 2.447, 2.365, 2.306, 2.262,
+        2.228, 2.201, 2.179, 2.160, 2.145, 2.131, 2.120, 2.110, 2.101, 2.093, 2.086, 2.080, 2.074,
+        2.069, 2.064, 2.060, 2.056, 2.052, 2.048, 2.045, 2.042 };
+
+    static final int TRIALS = Integer.getInteger("sweep.trials", 5);
+    static final int WARMUP_TRIALS = Integer.getInteger("sweep.warmupTrials", 1);
+    static final int MILLIS = Integer.getInteger("sweep.millis", 5000);
+    static final int WARMUP_MILLIS = Integer.getInteger("sweep.warmupMillis", 1000);
+    static final String JVM_ARGS = System.getProperty("sweep.jvmArgs", "").trim();
+    static final boolean FAITHFUL_WORK = Boolean.parseBoolean(System.getProperty("sweep.faithfulWork", "true"));
+
+    static class Point {
+        final String profile;
+        final String firewall;
+        final int headWorkers;
+        final int cacheMissWorkers;
+        final int queueCapacity;
+        final double[] throughput;
+        double speedup = Double.NaN;
+        double speedupCi = Double.NaN;
+
+        Point(String profile, String firewall, int headWorkers, int cacheMissWorkers,
+          int queueCapacity, double[] throughput) {
+            this.profile = profile;
+            this.firewall = firewall;
+            this.headWorkers = headWorkers;
+            this.cacheMissWorkers = cacheMissWorkers;
+            this.queueCapacity = queueCapacity;
+            this.throughput = throughput;
+        }
+
+        double mean() {
+            return Sweep.mean(throughput);
+        }
+
+        double stddev() {
+            return Sweep.stddev(throughput);
+        }
+
+        // half width of the 95% confidence interval of the mean
+        double ci() {
+            return t95(throughput.length - 1) * stddev() / Math.sqrt(throughput.length);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Locale.setDefault(Locale.ROOT);
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith("sweep.profile.")) {
+                PROFILES.put(name.substring("sweep.profile.".length()), System.getProperty(name));
+            }
+        }
+        List<String> profiles = new ArrayList<>();
+        if (args.length == 0) {
+            profiles.addAll(PROFILES.keySet());
+        }
+        for (String arg : args) {
+            if (!PROFILES.containsKey(arg)) {
+                throw new IllegalArgumentException("Unknown profile " + arg + ", known: " + PROFILES.keySet());
+            }
+            profiles.add(arg);
+        }
+        int[] headWorkers = ints(System.getProperty("sweep.headWorkers", "1,2,4,8"));
+        int[] cacheMissWorkers = ints(System.getProperty("sweep.cacheMissWorkers", "4"));
+        int[] queues = ints(System.getProperty("sweep.queues", "50"));
+        boolean serial = Boolean.parseBoolean(System.getProperty("sweep.serial", "true"));
+        String[] threadModes = System.getProperty("sweep.threads", StageThreads.PLATFORM).split(",");
+
+        List<Point> points = new ArrayList<>();
+        System.out.println("packet work: " + (FAITHFUL_WORK ? "faithful" : "jump-ahead fingerprint"));
+        System.out.printf("%-8s %-9s %5s %5s %6s %10s %9s %9s %8s %8s%n",
+            "profile", "firewall", "heads", "miss", "queue", "pkts/ms", "stddev", "95% ci", "speedup", "+-");
+        for (String profile : profiles) {
+            Point baseline = null;
+            if (serial) {
+                baseline = new Point(profile, "serial", 1, 0, 0, trials("SerialFireWall", profile, new String[0]));
+                points.add(baseline);
+                print(baseline);
+            }
+            for (String threads : threadModes) {
+                threads = threads.trim();
+                String firewall = threads.equals(StageThreads.PLATFORM) ? "pipeline" : threads;
+                for (int heads : headWorkers) {
+                    for (int misses : cacheMissWorkers) {
+                        for (int queue : queues) {
+                            Point p = new Point(profile, firewall, heads, misses, queue,
+                              trials("PipelineFirewall", profile, new String[] {
+                                "-Dfirewall.threads=" + threads,
+                                "-Dfirewall.headWorkers=" + heads,
+                                "-Dfirewall.cacheMissWorkers=" + misses,
+                                "-Dfirewall.queueCapacity=" + queue }));
+                            if (baseline != null) {
+                                speedup(p, baseline);
+                            }
+                            points.add(p);
+                            print(p);
+                        }
+                    }
+                }
+            }
+        }
+        String out = System.getProperty("sweep.out");
+        if (out != null) {
+            write(points, out, System.getProperty("sweep.format", "csv"));
+        }
+    }
+
+    static void print(Point p) {
+        System.out.printf("%-8s %-9s %5d %5d %6d %10.1f %9.1f %9.1f %8.3f %8.3f%n", p.profile, p.firewall,
+            p.headWorkers, p.cacheMissWorkers, p.queueCapacity, p.mean(), p.stddev(), p.ci(),
+            p.speedup, p.speedupCi);
+    }
+
+    // speedup = pipeline mean / serial mean, with its 95% interval from the delta method
+    static void speedup(Point p, Point serial) {
+        double ratio = p.mean() / serial.mean();
+        double relVariance = square(p.stddev() / p.mean()) / p.throughput.length
+            + square(serial.stddev() / serial.mean()) / serial.throughput.length;
+        int df = Math.min(p.throughput.length, serial.throughput.length) - 1;
+        p.speedup = ratio;
+        p.speedupCi = t95(df) * ratio * Math.sqrt(relVariance);
+    }
+
+    static double[] trials(String mainClass, String profile, String[] properties) throws IOException, InterruptedException {
+        double[] throughput = new double[TRIALS];
+        for (int i = 0; i < WARMUP_TRIALS + TRIALS; i++) {
+            double result = fork(mainClass, PROFILES.get(profile), properties);
+            if (i >= WARMUP_TRIALS) {
+                throughput[i - WARMUP_TRIALS] = result;
+            }
+        }
+        return throughput;
+    }
+
+    // runs one firewall in a new JVM and returns its throughput in pkts/ms
+    static double fork(String mainClass, String profileArgs, String[] properties) throws IOException, InterruptedException {
+        return throughput(run(mainClass, profileArgs, properties));
+    }
+
+    // runs one firewall in a new JVM and returns its output, one line per element
+    static List<String> run(String mainClass, String profileArgs, String[] properties) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        if (!JVM_ARGS.isEmpty()) {
+            for (String arg : JVM_ARGS.split("\\s+")) {
+                command.add(arg);
+            }
+        }
+        command.add("-Dfirewall.millis=" + MILLIS);
+        command.add("-Dfirewall.warmupMillis=" + WARMUP_MILLIS);
+        command.add("-Dfirewall.faithfulWork=" + FAITHFUL_WORK);
+        for (String property : properties) {
+            command.add(property);
+        }
+        command.add(mainClass);
+        for (String arg : profileArgs.trim().split("\\s+")) {
+            command.add(arg);
+        }
+        Process process = new ProcessBuilder(command).redirectErrorStream(true)
+            .redirectInput(ProcessBuilder.Redirect.from(new File("/dev/null"))).start();
+        List<String> output = new ArrayList<>();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                output.add(line);
+            }
+        }
+        int status = process.waitFor();
+        if (status != 0 || throughput(output) < 0) {
+            throw new IllegalStateException("run failed (exit " + status + "): " + String.join(" ", command)
+                + "\n" + String.join("\n", output));
+        }
+        return output;
+    }
+
+    // the throughput in pkts/ms from a firewall's output, -1 if it is not there
+    static double throughput(List<String> output) {
+        long count = -1;
+        double time = -1;
+        for (String line : output) {
+            if (line.startsWith("count: ")) {
+                count = Long.parseLong(line.substring("count: ".length()).trim());
+            } else if (line.startsWith("time: ")) {
+                time = Double.parseDouble(line.substring("time: ".length()).trim());
+            }
+        }
+        return count < 0 || time <= 0 ? -1 : count / time;
+    }
+
+    static void write(List<Point> points, String out, String format) throws IOException {
+        try (PrintWriter w = new PrintWriter(Files.newBufferedWriter(Paths.get(out)))) {
+            if (format.equals("json")) {
+                w.println("[");
+                for (int i = 0; i < points.size(); i++) {
+                    Point p = points.get(i);
+                    StringBuilder raw = new StringBuilder();
+                    for (double x : p.throughput) {
+                        raw.append(raw.length() == 0 ? "" : ", ").append(String.format("%.3f", x));
+                    }
+                    w.printf("  {\"profile\": \"%s\", \"firewall\": \"%s\", \"headWorkers\": %d, \"cacheMissWorkers\": %d, "
+                        + "\"queueCapacity\": %d, \"faithfulWork\": %b, \"trials\": [%s], \"mean\": %.3f, \"stddev\": %.3f, \"ci95\": %.3f, "
+                        + "\"speedup\": %s, \"speedupCi95\": %s}%s%n",
+                        p.profile, p.firewall, p.headWorkers, p.cacheMissWorkers, p.queueCapacity, FAITHFUL_WORK, raw,
+                        p.mean(), p.stddev(), p.ci(), json(p.speedup), json(p.speedupCi),
+                        i + 1 < points.size() ? "," : "");
+                }
+                w.println("]");
+            } else {
+                w.println("profile,firewall,head_workers,cache_miss_workers,queue_capacity,faithful_work,trials,mean,stddev,ci95,speedup,speedup_ci95");
+                for (Point p : points) {
+                    w.printf("%s,%s,%d,%d,%d,%b,%d,%.3f,%.3f,%.3f,%s,%s%n", p.profile, p.firewall, p.headWorkers,
+                        p.cacheMissWorkers, p.queueCapacity, FAITHFUL_WORK, p.throughput.length, p.mean(), p.stddev(), p.ci(),
+                        csv(p.speedup), csv(p.speedupCi));
+                }
+            }
+        }
+    }
+
+    static String json(double x) {
+        return Double.isNaN(x) ? "null" : String.format("%.4f", x);
+    }
+
+    static String csv(double x) {
+        return Double.isNaN(x) ? "" : String.format("%.4f", x);
+    }
+
+    static int[] ints(String list) {
+        String[] parts = list.split(",");
+        int[] xs = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            xs[i] = Integer.parseInt(parts[i].trim());
+        }
+        return xs;
+    }
+
+    static double t95(int df) {
+        if (df < 1) {
+            return Double.NaN;
+        }
+        return df <= T95.length ? T95[df - 1] : 1.96;
+    }
+
+    static double mean(double[] xs) {
+        double sum = 0;
+        for (double x : xs) {
+            sum += x;
+        }
+        return sum / xs.length;
+    }
+
+    static double stddev(double[] xs) {
+        if (xs.length < 2) {
+            return 0;
+        }
+        double mean = mean(xs);
+        double sum = 0;
+        for (double x : xs) {
+            sum += square(x - mean);
+        }
+        return Math.sqrt(sum / (xs.length - 1));
+    }
+
+    static double square(double x) {
+        return x * x;
+    }
+}
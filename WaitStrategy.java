@@ -0,0 +1,103 @@
+import java.util.concurrent.locks.LockSupport;
+
+public interface WaitStrategy {
+    /**
+     * What a pipeline thread does when it finds no work: an empty queue for a worker, a
+     * full pipeline or full queues for a dispatcher. The thread counts the rounds it has
+     * come up empty in a row and calls `idle` with that count (starting at 1); it resets
+     * the count as soon as it finds work again.
+     *
+     * Every thread gets its own instance (see `create`), so strategies may keep state.
+     * `wake` is called by producers after they added work for the thread: a queue whose
+     * consumer waits with a strategy calls it from offer (see RingQueue.setConsumerWaiter).
+     *
+     *   spin        return at once and poll again (the original behaviour)
+     *   onspinwait  Thread.onSpinWait(), a pause hint to the core
+     *   yield       Thread.yield()
+     *   backoff     spin, then yield, then park for exponentially longer (1 us .. 1 ms)
+     *   park        park until a producer wakes the thread, at most PARK_NANOS
+     */
+    public static final String SPIN = "spin";
+    public static final String ON_SPIN_WAIT = "onspinwait";
+    public static final String YIELD = "yield";
+    public static final String BACKOFF = "backoff";
+    public static final String PARK = "park";
+
+    public void idle(int idleCount);
+
+    public default void wake() {
+    }
+
+    public static WaitStrategy create(String name) {
+        switch (name) {
+            case SPIN:
+                return new BusySpinWait();
+            case ON_SPIN_WAIT:
+                return new OnSpinWait();
+            case YIELD:
+                return new YieldWait();
+            case BACKOFF:
+                return new BackoffWait();
+            case PARK:
+                return new ParkWait();
+            default:
+                throw new IllegalArgumentException("Unknown wait strategy: " + name);
+        }
+    }
+}
+
+class BusySpinWait implements WaitStrategy {
+    public void idle(int idleCount) {
+    }
+}
+
+class OnSpinWait implements WaitStrategy {
+    public void idle(int idleCount) {
+        Thread.onSpinWait();
+    }
+}
+
+class YieldWait implements WaitStrategy {
+    public void idle(int idleCount) {
+        Thread.yield();
+    }
+}
+
+class BackoffWait implements WaitStrategy {
+    static final int SPINS = 64;
+    static final int YIELDS = 64;
+    static final int MAX_PARK_SHIFT = 10; // 2^10 us
+
+    public void idle(int idleCount) {
+        if (idleCount <= SPINS) {
+            Thread.onSpinWait();
+        } else if (idleCount <= SPINS + YIELDS) {
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(1000L << Math.min(MAX_PARK_SHIFT, idleCount - SPINS - YIELDS - 1));
+        }
+    }
+}
+
+class ParkWait implements WaitStrategy {
+    /*
+     * A producer that adds work between the thread's last look at its queue and the park
+     * does not see it parked yet, so the park is bounded: such a wakeup is at most
+     * PARK_NANOS late.
+     */
+    static final long PARK_NANOS = 100_000L;
+    private volatile Thread parked;
+
+    public void idle(int idleCount) {
+        parked = Thread.currentThread();
+        LockSupport.parkNanos(this, PARK_NANOS);
+        parked = null;
+    }
+
+    public void wake() {
+        Thread t = parked;
+        if (t != null) {
+            LockSupport.unpark(t);
+        }
+    }
+}
@@ -0,0 +1,152 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+class WorkerStats extends WorkerStatsCounters {
+    /**
+     * Counters owned by a single worker thread: how many packets it processed, how many it
+     * retired from flight and a local fingerprint histogram. Only the owner writes them, so
+     * there is no contended atomic on the hot path; other threads read them through the
+     * static aggregation methods below, either live (a slightly stale but consistent-enough
+     * view) or after the workers have been joined (exact). Head workers also count their
+     * decision cache hits and misses and the config packets they applied, for the live
+     * metrics (see FirewallMetrics).
+     *
+     * With latency recording enabled the worker also keeps its own StageLatency
+     * histograms, read only after it has been joined.
+     */
+    long pad11, pad12, pad13, pad14, pad15, pad16, pad17, pad18;
+    final int[] histogram = new int[1 << 16];
+    StageLatency latency; // null unless enabled
+
+    void processed() {
+        PROCESSED.setOpaque(this, processed + 1);
+    }
+
+    void released(int count) {
+        RELEASED.setOpaque(this, released + count);
+    }
+
+    void cacheHit() {
+        CACHE_HITS.setOpaque(this, cacheHits + 1);
+    }
+
+    void cacheMiss() {
+        CACHE_MISSES.setOpaque(this, cacheMisses + 1);
+    }
+
+    void configApplied() {
+        CONFIGS.setOpaque(this, configs + 1);
+    }
+
+    void fingerprint(long fingerprint) {
+        histogram[(int) fingerprint]++;
+    }
+
+    long getProcessed() {
+        return (long) PROCESSED.getOpaque(this);
+    }
+
+    long getReleased() {
+        return (long) RELEASED.getOpaque(this);
+    }
+
+    static long totalProcessed(WorkerStats[] stats) {
+        long total = 0;
+        for (WorkerStats s : stats) {
+            total += s.getProcessed();
+        }
+        return total;
+    }
+
+    static long totalCacheHits(WorkerStats[] stats) {
+        long total = 0;
+        for (WorkerStats s : stats) {
+            total += (long) CACHE_HITS.getOpaque(s);
+        }
+        return total;
+    }
+
+    static long totalCacheMisses(WorkerStats[] stats) {
+        long total = 0;
+        for (WorkerStats s : stats) {
+            total += (long) CACHE_MISSES.getOpaque(s);
+        }
+        return total;
+    }
+
+    static long totalConfigs(WorkerStats[] stats) {
+        long total = 0;
+        for (WorkerStats s : stats) {
+            total += (long) CONFIGS.getOpaque(s);
+        }
+        return total;
+    }
+
+    static long totalReleased(WorkerStats[] stats) {
+        long total = 0;
+        for (WorkerStats s : stats) {
+            total += s.getReleased();
+        }
+        return total;
+    }
+
+    static int[] mergeHistograms(WorkerStats[] stats) {
+        int[] merged = new int[1 << 16];
+        for (WorkerStats s : stats) {
+            for (int i = 0; i < merged.length; i++) {
+                merged[i] += s.histogram[i];
+            }
+        }
+        return merged;
+    }
+
+    static WorkerStats[] create(int count) {
+        WorkerStats[] stats = new WorkerStats[count];
+        for (int i = 0; i < count; i++) {
+            stats[i] = new WorkerStats();
+        }
+        return stats;
+    }
+
+    // records the latencies of packets finished from System.nanoTime() `fromNanos` on
+    static void enableLatency(WorkerStats[] stats, long fromNanos) {
+        for (WorkerStats s : stats) {
+            s.latency = new StageLatency(fromNanos);
+        }
+    }
+
+    static WorkerStats[] concat(WorkerStats[] first, WorkerStats[] second) {
+        WorkerStats[] all = new WorkerStats[first.length + second.length];
+        System.arraycopy(first, 0, all, 0, first.length);
+        System.arraycopy(second, 0, all, first.length, second.length);
+        return all;
+    }
+}
+
+abstract class WorkerStatsPad {
+    long pad01, pad02, pad03, pad04, pad05, pad06, pad07, pad08;
+}
+
+abstract class WorkerStatsCounters extends WorkerStatsPad {
+    static final VarHandle PROCESSED;
+    static final VarHandle RELEASED;
+    static final VarHandle CACHE_HITS;
+    static final VarHandle CACHE_MISSES;
+    static final VarHandle CONFIGS;
+    static {
+        try {
+            PROCESSED = MethodHandles.lookup().findVarHandle(WorkerStatsCounters.class, "processed", long.class);
+            RELEASED = MethodHandles.lookup().findVarHandle(WorkerStatsCounters.class, "released", long.class);
+            CACHE_HITS = MethodHandles.lookup().findVarHandle(WorkerStatsCounters.class, "cacheHits", long.class);
+            CACHE_MISSES = MethodHandles.lookup().findVarHandle(WorkerStatsCounters.class, "cacheMisses", long.class);
+            CONFIGS = MethodHandles.lookup().findVarHandle(WorkerStatsCounters.class, "configs", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+    long processed;
+    long released;
+    long cacheHits;
+    long cacheMisses;
+    long configs;
+}
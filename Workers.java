@@ -1,16 +1,17 @@
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.LockSupport;
 
 class SerialFireWallWorker implements Runnable {
   PaddedPrimitiveNonVolatile<Boolean> done;
-  final PacketGenerator source;
-  final LBCAHashTable<AddressData> table;
+  final PacketSource source;
+  final HashTable<AddressData> table;
   final AtomicIntegerArray histogram;
   long totalProcessedPackets = 0;
+  LatencyHistogram latency; // service time per packet, null unless enabled
 
   public SerialFireWallWorker(PaddedPrimitiveNonVolatile<Boolean> done,
-    PacketGenerator source,
-    LBCAHashTable<AddressData> table) {
+    PacketSource source,
+    HashTable<AddressData> table) {
     this.done = done;
     this.source = source;
     this.table = table;
@@ -23,6 +24,7 @@ class SerialFireWallWorker implements Runnable {
     AddressData sourceData;
     while (!done.value) {
       pkt = source.getPacket();
+      long start = latency != null ? System.nanoTime() : 0;
       switch (pkt.type) {
         case ConfigPacket:
         if (!table.contains(pkt.config.address)) {
@@ -44,10 +46,12 @@ class SerialFireWallWorker implements Runnable {
             table.add(pkt.header.dest, new AddressData());
           }
           AddressData destData = table.get(pkt.header.dest);
-          Boolean allowed = destData.cache.get(pkt.header.source);
-          if (allowed == null) {
-            allowed = destData.intervals.contains(pkt.header.source, sourceData);
-            destData.cache.add(pkt.header.source, allowed);
+          int decision = destData.lookupDecision(pkt.header.source);
+          boolean allowed;
+          if (decision == DecisionCache.MISS) {
+            allowed = destData.decide(pkt.header.source, sourceData);
+          } else {
+            allowed = decision == DecisionCache.ALLOW;
           }
           if (allowed == true) {
             long fingerprint = Fingerprint.getFingerprint(pkt.body.iterations, pkt.body.seed);
@@ -56,182 +60,968 @@ class SerialFireWallWorker implements Runnable {
           }
           break;
       }
+      if (latency != null) {
+        latency.record(System.nanoTime() - start);
+      }
     }
   }
 }
 
 class Dispatcher implements Runnable {
+  static final int MAX_PACKETS_IN_FLIGHT = 256;
   PaddedPrimitiveNonVolatile<Boolean> done;
-  PacketGenerator source;
-  final WaitFreeQueue<Packet>[] queues;
+  PacketSource source;
+  volatile RingQueue<Packet>[] queues; // replaced by the PipelineController in adaptive mode
+  volatile int inFlightLimit = MAX_PACKETS_IN_FLIGHT;
   Packet pkt;
   int index = 0;
-  AtomicInteger packetsInFlight;
+  final WorkerStats[] workers;
+  long dispatched = 0;
+  long released = 0; // last seen sum of the workers' released counters
+  final PaddedCounter[] dispatchers; // every dispatcher's published dispatched count
+  final PaddedCounter myDispatched;
+  long othersDispatched = 0; // last seen sum of the other dispatchers' counts
+  long dispatchedAtRefresh = 0;
+  final int batchSize;
+  final Packet[] batch;
+  int batchStart = 0; // batch[batchStart .. batchEnd) is generated but not yet handed off
+  int batchEnd = 0;
+  WaitStrategy waitStrategy = new BusySpinWait();
+  boolean stampPackets = false; // for latency recording
+  OpenLoopSchedule schedule; // null: closed loop
+  QueueStallEvent stall; // while it cannot hand off its packets and the event is enabled
+
+  public Dispatcher(PaddedPrimitiveNonVolatile<Boolean> done,
+  PacketSource source,
+  RingQueue<Packet>[] queues,
+  WorkerStats[] workers) {
+    this(done, source, queues, workers, 1);
+  }
+
+  public Dispatcher(PaddedPrimitiveNonVolatile<Boolean> done,
+  PacketSource source,
+  RingQueue<Packet>[] queues,
+  WorkerStats[] workers,
+  int batchSize) {
+    this(done, source, queues, workers, batchSize, PaddedCounter.create(1), 0);
+  }
 
+  /*
+   * With batchSize > 1 the dispatcher fills a batch of packets and hands as much of it as
+   * fits to one head worker with a single offerBatch, accounting for the whole handoff at
+   * once.
+   *
+   * Packets in flight are dispatched minus released, where released is summed over the
+   * workers' own counters only when the cached sum says the pipeline might be full.
+   *
+   * Several dispatchers can feed one pipeline, each with its own source. Dispatcher `id`
+   * publishes its count in dispatchers[id] and adds up the others' counts when it refreshes,
+   * which it also does after every MAX_PACKETS_IN_FLIGHT / dispatchers.length of its own
+   * dispatches. The cap is therefore soft: a dispatcher that has not yet seen the others'
+   * latest packets may overshoot it, by at most one refresh interval per dispatcher, so no
+   * more than 2 * MAX_PACKETS_IN_FLIGHT packets are ever in flight.
+   *
+   * The cap is MAX_PACKETS_IN_FLIGHT unless a PipelineController moves it with
+   * setInFlightLimit, and the controller may likewise swap the queues to dispatch to.
+   *
+   * The dispatcher idles with its WaitStrategy while the pipeline is full and after every
+   * full round of queues that had no room. Workers do not wake it when they release
+   * packets, so a parking strategy only sleeps for its bounded park time.
+   *
+   * With an OpenLoopSchedule the dispatcher is open loop: it takes a packet from its source
+   * only once the schedule says it is due, whether or not the pipeline kept up, and stamps
+   * it with that intended send time instead of the time it was actually enqueued. Time the
+   * packet then spends waiting for room in the pipeline counts towards its latency, so an
+   * overloaded pipeline shows up as growing latency rather than as a slower sender.
+   */
   public Dispatcher(PaddedPrimitiveNonVolatile<Boolean> done,
-  PacketGenerator source,
-  WaitFreeQueue<Packet>[] queues,
-  AtomicInteger packetsInFlight) {
+  PacketSource source,
+  RingQueue<Packet>[] queues,
+  WorkerStats[] workers,
+  int batchSize,
+  PaddedCounter[] dispatchers,
+  int id) {
     this.done = done;
     this.source = source;
     this.queues = queues;
     this.pkt = null;
-    this.packetsInFlight = packetsInFlight;
+    this.workers = workers;
+    this.batchSize = Math.max(1, Math.min(batchSize, MAX_PACKETS_IN_FLIGHT));
+    this.batch = new Packet[this.batchSize];
+    this.dispatchers = dispatchers;
+    this.myDispatched = dispatchers[id];
+  }
+  private boolean hasRoomFor(int count) {
+    int limit = inFlightLimit;
+    if (othersDispatched + dispatched - released + count <= limit
+     && (dispatchers.length == 1
+      || dispatched - dispatchedAtRefresh < limit / dispatchers.length)) {
+      return true;
+    }
+    released = WorkerStats.totalReleased(workers);
+    if (dispatchers.length > 1) {
+      othersDispatched = PaddedCounter.sum(dispatchers) - dispatched;
+      dispatchedAtRefresh = dispatched;
+    }
+    return othersDispatched + dispatched - released + count <= limit;
+  }
+
+  // never below one batch, or a full batch could never be handed off
+  void setInFlightLimit(int limit) {
+    inFlightLimit = Math.max(limit, batchSize);
+  }
+
+  void setQueues(RingQueue<Packet>[] queues) {
+    this.queues = queues;
+  }
+
+  void setWaitStrategy(WaitStrategy waitStrategy) {
+    this.waitStrategy = waitStrategy;
+  }
+
+  // stamp every packet with its dispatch time, right before it is enqueued
+  void setStampPackets(boolean stampPackets) {
+    this.stampPackets = stampPackets;
+  }
+
+  void setSchedule(OpenLoopSchedule schedule) {
+    this.schedule = schedule;
   }
+
+  long packetsInFlight() {
+    return PaddedCounter.sum(dispatchers) - WorkerStats.totalReleased(workers);
+  }
+
   @Override
   public void run() {
+    if (batchSize > 1) {
+      runBatched();
+      return;
+    }
+    int idle = 0;
+    int failed = 0;
     while ( !done.value ) {
       if (pkt == null) {
-        pkt = source.getPacket();
+        if (schedule != null) {
+          long intended = schedule.next();
+          if (!schedule.await(intended, done)) {
+            return;
+          }
+          pkt = source.getPacket();
+          pkt.dispatchNanos = intended;
+        } else {
+          pkt = source.getPacket();
+        }
       }
-      if (packetsInFlight.get() < 256) {
-        try {
-          packetsInFlight.incrementAndGet();
-          queues[index].enq(pkt);
-          index = (index + 1) % queues.length;
+      if (hasRoomFor(1)) {
+        RingQueue<Packet>[] myQueues = queues;
+        if (index >= myQueues.length) {
+          index = 0;
+        }
+        if (stampPackets && schedule == null) {
+          pkt.dispatchNanos = System.nanoTime();
+        }
+        if (myQueues[index].offer(pkt)) {
+          dispatched++;
+          myDispatched.set(dispatched);
           pkt = null;
-        } catch (FullException e) {
-          index = (index + 1) % queues.length;
+          resumed(idle);
+          idle = 0;
+          failed = 0;
+        } else if (++failed >= myQueues.length) {
+          failed = 0;
+          stalled(++idle);
         }
+        index = (index + 1) % myQueues.length;
+      } else {
+        stalled(++idle);
       }
     }
+    resumed(idle);
+  }
+
+  // one more round without handing off a packet; the first one starts a QueueStallEvent
+  private void stalled(int idle) {
+    if (idle == 1) {
+      stall = QueueStallEvent.begin(QueueStallEvent.DISPATCHER);
+    }
+    waitStrategy.idle(idle);
+  }
+
+  private void resumed(int idle) {
+    if (stall != null) {
+      stall.end(idle);
+      stall = null;
+    }
+  }
+
+  private void runBatched() {
+    int idle = 0;
+    int failed = 0;
+    while ( !done.value ) {
+      if (batchStart == batchEnd) {
+        // open loop: a batch leaves when its last packet is due
+        long intended = 0;
+        for (int i = 0; i < batchSize; i++) {
+          if (schedule != null) {
+            intended = schedule.next();
+          }
+          batch[i] = source.getPacket();
+          batch[i].dispatchNanos = intended;
+        }
+        if (schedule != null && !schedule.await(intended, done)) {
+          return;
+        }
+        batchStart = 0;
+        batchEnd = batchSize;
+      }
+      int pending = batchEnd - batchStart;
+      if (hasRoomFor(pending)) {
+        RingQueue<Packet>[] myQueues = queues;
+        if (index >= myQueues.length) {
+          index = 0;
+        }
+        if (stampPackets && schedule == null) {
+          long now = System.nanoTime();
+          for (int i = batchStart; i < batchEnd; i++) {
+            batch[i].dispatchNanos = now;
+          }
+        }
+        int handed = myQueues[index].offerBatch(batch, batchStart, pending);
+        if (handed > 0) {
+          dispatched += handed;
+          myDispatched.set(dispatched);
+          batchStart += handed;
+          resumed(idle);
+          idle = 0;
+          failed = 0;
+        } else if (++failed >= myQueues.length) {
+          failed = 0;
+          stalled(++idle);
+        }
+        index = (index + 1) % myQueues.length;
+      } else {
+        stalled(++idle);
+      }
+    }
+    resumed(idle);
+  }
+}
+
+
+/*
+ * The send times of an open-loop Dispatcher: packet i is due `i / ratePerMilli` ms after
+ * the first one, which is due when the dispatcher first asks. Only the owning dispatcher
+ * calls next and await; others read lagMillis only after it has been joined.
+ */
+class OpenLoopSchedule {
+  static final long SPIN_NANOS = 50_000; // park until this close to a send time, then spin
+  final double ratePerMilli;
+  final double intervalNanos;
+  long start;
+  long sent = 0;
+  long lateNanos = 0; // how late the last awaited send time was passed
+
+  public OpenLoopSchedule(double ratePerMilli) {
+    if (!(ratePerMilli > 0)) {
+      throw new IllegalArgumentException("The offered rate must be positive: " + ratePerMilli);
+    }
+    this.ratePerMilli = ratePerMilli;
+    this.intervalNanos = 1e6 / ratePerMilli;
+  }
+
+  // the intended send time of the next packet
+  long next() {
+    if (sent == 0) {
+      start = System.nanoTime();
+    }
+    return start + (long) (sent++ * intervalNanos);
+  }
+
+  /*
+   * Waits until `due`; returns false if the run ended first. A dispatcher that is behind
+   * schedule returns at once and sends the overdue packets back to back.
+   */
+  boolean await(long due, PaddedPrimitiveNonVolatile<Boolean> done) {
+    long remaining;
+    while ((remaining = due - System.nanoTime()) > 0) {
+      if (done.value) {
+        return false;
+      }
+      if (remaining > SPIN_NANOS) {
+        LockSupport.parkNanos(remaining - SPIN_NANOS);
+      } else {
+        Thread.onSpinWait();
+      }
+    }
+    lateNanos = -remaining;
+    return true;
+  }
+
+  // how far behind schedule the dispatcher was when it last sent; read after it has stopped
+  double lagMillis() {
+    return lateNanos / 1e6;
+  }
+}
+
+
+/*
+ * The per-packet work of the packet pipeline, shared by the queue workers (HeadWorker,
+ * CacheMissWorker) and the work-stealing tasks (HeadTask, CacheMissTask). The modes differ
+ * only in how a cache miss is handed on and in how the head stage fingerprints.
+ */
+class PacketWork {
+  // the address's data, added to the table when the address is new
+  static AddressData lookupOrAdd(HashTable<AddressData> table, int address) {
+    if (!table.contains(address)) {
+      table.add(address, new AddressData());
+    }
+    return table.get(address);
+  }
+
+  static void applyConfig(HashTable<AddressData> table, Packet pkt, WorkerStats stats) {
+    lookupOrAdd(table, pkt.config.address).updatePermission(pkt.config.personaNonGrata,
+     pkt.config.acceptingRange,
+      pkt.config.addressBegin,
+       pkt.config.addressEnd);
+    stats.configApplied();
+  }
+
+  /*
+   * The head stage of a data packet picked up at `pickupNanos` (only read with latency
+   * recording): its cached decision, ALLOW, DENY or MISS. A missed packet is stamped for
+   * the cache-miss stage, and the caller hands it on to decide().
+   */
+  static int lookup(HashTable<AddressData> table, Packet pkt, WorkerStats stats, long pickupNanos) {
+    lookupOrAdd(table, pkt.header.source);
+    int decision = lookupOrAdd(table, pkt.header.dest).lookupDecision(pkt.header.source);
+    if (decision != DecisionCache.MISS) {
+      stats.cacheHit();
+      return decision;
+    }
+    stats.cacheMiss();
+    StageLatency latency = stats.latency;
+    if (latency != null) {
+      pkt.missEnqueueNanos = System.nanoTime();
+      latency.record(StageLatency.HEAD, pickupNanos, pkt.missEnqueueNanos);
+    } else if (CacheMissEvent.TYPE.isEnabled()) {
+      pkt.missEnqueueNanos = System.nanoTime();
+    }
+    pkt.missEvent = CacheMissEvent.start();
+    return decision;
+  }
+
+  /*
+   * The cache-miss stage: decides a packet that missed the cache, fingerprints it if it is
+   * allowed, and accounts for it as processed and released.
+   */
+  static void decide(HashTable<AddressData> table, Packet pkt, WorkerStats stats) {
+    StageLatency latency = stats.latency;
+    CacheMissEvent event = pkt.missEvent;
+    long start = 0;
+    if (latency != null) {
+      start = System.nanoTime();
+      latency.record(StageLatency.MISS_QUEUE, pkt.missEnqueueNanos, start);
+    } else if (event != null) {
+      start = System.nanoTime();
+    }
+    try {
+      AddressData sourceData = table.get(pkt.header.source);
+      AddressData destData = table.get(pkt.header.dest);
+      //Boolean allowed = (!sourceData.personaNonGrata) && (destData.intervals.contains(pkt.header.source));
+      boolean allowed = destData.decide(pkt.header.source, sourceData);
+      if (event != null) {
+        event.allowed = allowed;
+      }
+      if (allowed) {
+        long fingerprint = Fingerprint.getFingerprint(pkt.body.iterations, pkt.body.seed);
+        stats.fingerprint(fingerprint);
+      }
+      stats.processed();
+    } catch (Throwable t) {
+      //t.printStackTrace();
+    } finally {
+      stats.released(1);
+    }
+    if (latency != null) {
+      long end = System.nanoTime();
+      latency.record(StageLatency.CACHE_MISS, start, end);
+      latency.record(StageLatency.END_TO_END, pkt.dispatchNanos, end);
+    }
+    if (event != null && event.shouldCommit()) {
+      CacheMissEvent.fill(event, pkt.header.source, pkt.header.dest, pkt.missEnqueueNanos, start);
+      event.commit();
+    }
   }
 }
 
 
 class CacheMissWorker implements Runnable {
     PaddedPrimitiveNonVolatile<Boolean> done;
-    final WaitFreeQueue<Packet> myQueue;
-    final LBCAHashTable<AddressData> table;
-    final AtomicIntegerArray histogram;
-    AtomicInteger totalProcessedPackets;
-    AtomicInteger packetsInFlight;
+    final RingQueue<Packet> myQueue;
+    final HashTable<AddressData> table;
+    final WorkerStats stats;
+    WaitStrategy waitStrategy = new BusySpinWait();
 
     public CacheMissWorker(
     PaddedPrimitiveNonVolatile<Boolean> done,
-    WaitFreeQueue<Packet> myQueue,
-    LBCAHashTable<AddressData> table,
-    AtomicIntegerArray histogram,
-    AtomicInteger totalProcessedPackets,
-    AtomicInteger packetsInFlight) {
+    RingQueue<Packet> myQueue,
+    HashTable<AddressData> table,
+    WorkerStats stats) {
       this.done = done;
       this.table = table;
       this.myQueue = myQueue;
-      this.histogram = histogram;
-      this.totalProcessedPackets = totalProcessedPackets;
-      this.packetsInFlight = packetsInFlight;
+      this.stats = stats;
     }
 
     @Override
     public void run() {
-        Packet pkt;
+        int idle = 0;
         while( !done.value ) {
-        try {
-            pkt = myQueue.deq();
-            AddressData sourceData = table.get(pkt.header.source);
-            AddressData destData = table.get(pkt.header.dest);
-            LBCAHashTable<Boolean> cacheForDest = destData.cache;
-            //Boolean allowed = (!sourceData.personaNonGrata) && (destData.intervals.contains(pkt.header.source));
-            Boolean allowed = destData.intervals.contains(pkt.header.source, sourceData);
-            cacheForDest.add(pkt.header.source, allowed);
-            if (allowed) {
-              long fingerprint = Fingerprint.getFingerprint(pkt.body.iterations, pkt.body.seed);
-              this.histogram.incrementAndGet((int) fingerprint);
-            }
-            totalProcessedPackets.getAndIncrement();
-        } catch (Throwable t) {
-            //t.printStackTrace();
-            continue;
-            } finally {
-              packetsInFlight.decrementAndGet();
+            if (step()) {
+                idle = 0;
+            } else {
+                waitStrategy.idle(++idle);
             }
         }
+    }
+
+    /*
+     * Idles with `waitStrategy` while the queue is empty; the queue's producers wake it.
+     */
+    void setWaitStrategy(WaitStrategy waitStrategy) {
+        this.waitStrategy = waitStrategy;
+        myQueue.setConsumerWaiter(waitStrategy);
+    }
+
+    /*
+     * Handles the next packet of the queue, if there is one; returns false if it was empty.
+     */
+    boolean step() {
+        Packet pkt = myQueue.poll();
+        if (pkt == null) {
+            return false;
+        }
+        PacketWork.decide(table, pkt, stats);
+        return true;
     }  
 }
 
 
 class HeadWorker implements Runnable {
     PaddedPrimitiveNonVolatile<Boolean> done;
-    final WaitFreeQueue<Packet> myQueue;
-    final LBCAHashTable<AddressData> table;
-    AtomicInteger totalProcessedPackets;
-    final WaitFreeQueue<Packet>[] queues;
-    AtomicIntegerArray histogram;
-    AtomicInteger packetsInFlight;
+    final RingQueue<Packet> myQueue;
+    final HashTable<AddressData> table;
+    volatile RingQueue<Packet>[] queues; // cache-miss queues, replaced in adaptive mode
+    final WorkerStats stats;
     int index = 0;
+    final int batchSize;
+    final Packet[] batch;
+    final int fingerprintBatchSize;
+    final long[] pendingIterations;
+    final long[] pendingSeeds;
+    final long[] pendingFingerprints;
+    int pending = 0;
+    WaitStrategy waitStrategy = new BusySpinWait();
+    final long[] finishedDispatchNanos; // of the packets of a batch finished here
+
+    public HeadWorker(
+    PaddedPrimitiveNonVolatile<Boolean> done,
+    RingQueue<Packet> myQueue,
+    HashTable<AddressData> table,
+    final RingQueue<Packet>[] queues,
+    WorkerStats stats) {
+      this(done, myQueue, table, queues, stats, 1, 1);
+    }
 
+    /*
+     * The worker drains up to batchSize packets from its queue at a time and settles the
+     * packets it finished with a single update of its released counter. With
+     * fingerprintBatchSize > 1 the accepted packets are collected and fingerprinted together
+     * through Fingerprint.getFingerprints, at the latest at the end of each drained batch.
+     */
     public HeadWorker(
     PaddedPrimitiveNonVolatile<Boolean> done,
-    WaitFreeQueue<Packet> myQueue,
-    LBCAHashTable<AddressData> table,
-    AtomicInteger totalProcessedPackets,
-    final WaitFreeQueue<Packet>[] queues,
-    AtomicIntegerArray histogram,
-    AtomicInteger packetsInFlight) {
+    RingQueue<Packet> myQueue,
+    HashTable<AddressData> table,
+    final RingQueue<Packet>[] queues,
+    WorkerStats stats,
+    int batchSize,
+    int fingerprintBatchSize) {
+      this.batchSize = Math.max(1, batchSize);
+      this.batch = new Packet[this.batchSize];
+      this.fingerprintBatchSize = Math.max(1, fingerprintBatchSize);
+      this.pendingIterations = new long[this.fingerprintBatchSize];
+      this.pendingSeeds = new long[this.fingerprintBatchSize];
+      this.pendingFingerprints = new long[this.fingerprintBatchSize];
+      this.finishedDispatchNanos = new long[this.batchSize];
       this.done = done;
       this.table = table;
       this.myQueue = myQueue;
-      this.totalProcessedPackets = totalProcessedPackets;
       this.queues = queues;
-      this.histogram = histogram;
-      this.packetsInFlight = packetsInFlight;
+      this.stats = stats;
     }
 
-    @Override
+  @Override
   public void run() {
-    Packet pkt;
+    int idle = 0;
     while( !done.value ) {
+      if (step() > 0) {
+        idle = 0;
+      } else {
+        waitStrategy.idle(++idle);
+      }
+    }
+  }
+
+  void setCacheMissQueues(RingQueue<Packet>[] queues) {
+    this.queues = queues;
+  }
+
+  /*
+   * Idles with `waitStrategy` while its queue is empty, where the dispatchers wake it, and
+   * after every full round of cache-miss queues that had no room for a miss.
+   */
+  void setWaitStrategy(WaitStrategy waitStrategy) {
+    this.waitStrategy = waitStrategy;
+    myQueue.setConsumerWaiter(waitStrategy);
+  }
+
+  /*
+   * Handles one drained batch of the queue; returns its size, 0 if the queue was empty.
+   * With latency recording the whole batch shares one pickup stamp, and the packets
+   * finished here share one completion stamp, taken after their fingerprints.
+   */
+  int step() {
+    int n = myQueue.drainTo(batch, batchSize);
+    if (n == 0) {
+      return 0;
+    }
+    StageLatency latency = stats.latency;
+    long pickup = 0;
+    if (latency != null) {
+      pickup = System.nanoTime();
+      for (int i = 0; i < n; i++) {
+        batch[i].pickupNanos = pickup;
+        latency.record(StageLatency.QUEUE, batch[i].dispatchNanos, pickup);
+      }
+    }
+    int completed = 0;
+    for (int i = 0; i < n; i++) {
       try {
-        pkt = myQueue.deq();
-        AddressData sourceData;
-        switch (pkt.type) {
-          case ConfigPacket:
-          if (!table.contains(pkt.config.address)) {
-            table.add(pkt.config.address, new AddressData());
-          }
-          sourceData = table.get(pkt.config.address);
-          sourceData.updatePermission(pkt.config.personaNonGrata,
-          pkt.config.acceptingRange,
-           pkt.config.addressBegin,
-            pkt.config.addressEnd);
-            totalProcessedPackets.getAndIncrement();
-            packetsInFlight.decrementAndGet();
-            break;
-          
-          case DataPacket:
-            if (!table.contains(pkt.header.source)) {
-              table.add(pkt.header.source, new AddressData());
+        if (process(batch[i])) {
+          finishedDispatchNanos[completed++] = batch[i].dispatchNanos;
+        }
+      } catch (Throwable e) {
+        continue;
+      }
+      batch[i] = null;
+    }
+    flushFingerprints();
+    if (completed > 0) {
+      stats.released(completed);
+      if (latency != null) {
+        long end = System.nanoTime();
+        for (int i = 0; i < completed; i++) {
+          latency.record(StageLatency.HEAD, pickup, end);
+          latency.record(StageLatency.END_TO_END, finishedDispatchNanos[i], end);
+        }
+      }
+    }
+    return n;
+  }
+
+  /*
+   * Handles one packet. Returns true if the packet is finished here and false if it was
+   * passed on to a cache-miss worker, which then accounts for it.
+   */
+  private boolean process(Packet pkt) {
+    switch (pkt.type) {
+      case ConfigPacket:
+        PacketWork.applyConfig(table, pkt, stats);
+        stats.processed();
+        return true;
+
+      case DataPacket:
+        int decision = PacketWork.lookup(table, pkt, stats, pkt.pickupNanos);
+        if (decision == DecisionCache.MISS) {
+          boolean succeeded = false; // Have we found a queue to place the packet inside?
+          int failed = 0;
+          QueueStallEvent stall = null;
+          while (!succeeded && !done.value) {
+            RingQueue<Packet>[] myQueues = queues;
+            if (index >= myQueues.length) {
+              index = 0;
             }
-            sourceData = table.get(pkt.header.source);
-            if (!table.contains(pkt.header.dest)) {
-              table.add(pkt.header.dest, new AddressData());
+            succeeded = myQueues[index].offer(pkt);
+            index = (index + 1) % myQueues.length;
+            if (!succeeded && ++failed % myQueues.length == 0) {
+              if (failed == myQueues.length) {
+                stall = QueueStallEvent.begin(QueueStallEvent.HEAD_WORKER);
+              }
+              waitStrategy.idle(failed / myQueues.length);
             }
-            AddressData destData = table.get(pkt.header.dest);
-            Boolean allowed = destData.cache.get(pkt.header.source);
-            if (allowed == null) {
-              Boolean succeeded = false; // Have we found a queue to place the packet inside?
-              while (!succeeded && !done.value) {
-                try {
-                  queues[index].enq(pkt);
-                  index = (index + 1) % queues.length;
-                  succeeded = true;
-                } catch (FullException e) {
-                  index = (index + 1) % queues.length;
-                }
+          }
+          if (stall != null) {
+            stall.end(failed / queues.length);
+          }
+          return false;
+        }
+        if (decision == DecisionCache.ALLOW) {
+          if (fingerprintBatchSize > 1) {
+            pendingIterations[pending] = pkt.body.iterations;
+            pendingSeeds[pending] = pkt.body.seed;
+            if (++pending == fingerprintBatchSize) {
+              flushFingerprints();
             }
           } else {
-            if (allowed == true) {
-              long fingerprint = Fingerprint.getFingerprint(pkt.body.iterations, pkt.body.seed);
-              histogram.getAndIncrement((int) fingerprint);
-            }
-            totalProcessedPackets.getAndIncrement();
-            packetsInFlight.decrementAndGet();
+            long fingerprint = Fingerprint.getFingerprint(pkt.body.iterations, pkt.body.seed);
+            stats.fingerprint(fingerprint);
           }
         }
-        
-      } catch (Throwable e) {
+        stats.processed();
+        return true;
+    }
+    return true;
+  }
+
+  private void flushFingerprints() {
+    if (pending == 0) {
+      return;
+    }
+    Fingerprint.getFingerprints(pendingIterations, pendingSeeds, pendingFingerprints, pending);
+    for (int i = 0; i < pending; i++) {
+      stats.fingerprint(pendingFingerprints[i]);
+    }
+    pending = 0;
+  }
+}
+
+
+/*
+ * Adaptive mode (see PipelineController): a worker that can act as a head worker or as a
+ * cache-miss worker and switch at runtime. It is the single consumer of both its head queue
+ * and its cache-miss queue and mainly serves the queue of its current role. It also serves
+ * the other queue whenever its own is empty, which drains what was queued for it before a
+ * role change; no one adds to that queue once the controller has republished the queues.
+ *
+ * It handles leftover head packets only while its cache-miss queue is empty, so as long
+ * as a head batch fits into one cache-miss queue the misses it forwards always find room
+ * in its own queue, even if it is the only cache-miss worker left.
+ */
+class AdaptiveWorker implements Runnable {
+  static final int HEAD = 0;
+  static final int CACHE_MISS = 1;
+  PaddedPrimitiveNonVolatile<Boolean> done;
+  final HeadWorker head;
+  final CacheMissWorker cacheMiss;
+  volatile int role;
+
+  public AdaptiveWorker(PaddedPrimitiveNonVolatile<Boolean> done,
+  HeadWorker head,
+  CacheMissWorker cacheMiss,
+  int role) {
+    this.done = done;
+    this.head = head;
+    this.cacheMiss = cacheMiss;
+    this.role = role;
+  }
+
+  @Override
+  public void run() {
+    WaitStrategy waitStrategy = head.waitStrategy;
+    int idle = 0;
+    while (!done.value) {
+      boolean worked;
+      if (role == HEAD) {
+        worked = head.step() > 0 || cacheMiss.step();
+      } else {
+        worked = cacheMiss.step() || head.step() > 0;
+      }
+      if (worked) {
+        idle = 0;
+      } else {
+        waitStrategy.idle(++idle);
+      }
+    }
+  }
+
+  // one strategy for both roles, woken by either queue
+  void setWaitStrategy(WaitStrategy waitStrategy) {
+    head.setWaitStrategy(waitStrategy);
+    cacheMiss.setWaitStrategy(waitStrategy);
+  }
+}
+
+
+/*
+ * Slot mode (see PacketRing): the same pipeline, but packets are slot indices into one
+ * preallocated ring, so the steady state allocates no packets. A slot is released back to
+ * the ring by whichever worker finishes the packet, and the ring's capacity takes the place
+ * of the dispatcher's in-flight count.
+ */
+class SlotDispatcher implements Runnable {
+  PaddedPrimitiveNonVolatile<Boolean> done;
+  final PacketSource source;
+  final PacketRing ring;
+  final IntRingQueue[] queues;
+  int slot = -1;
+  int index = 0;
+  WaitStrategy waitStrategy = new BusySpinWait();
+  boolean stampPackets = false; // for latency recording
+  QueueStallEvent stall; // while it cannot hand off its packets and the event is enabled
+
+  public SlotDispatcher(PaddedPrimitiveNonVolatile<Boolean> done,
+  PacketSource source,
+  PacketRing ring,
+  IntRingQueue[] queues) {
+    this.done = done;
+    this.source = source;
+    this.ring = ring;
+    this.queues = queues;
+  }
+
+  @Override
+  public void run() {
+    int idle = 0;
+    int failed = 0;
+    while ( !done.value ) {
+      if (slot < 0) {
+        slot = ring.claim();
+        if (slot < 0) {
+          stalled(++idle); // every slot is in flight
+          continue;
+        }
+        source.getPacket(ring, slot);
+      }
+      if (stampPackets) {
+        ring.dispatchNanos[slot] = System.nanoTime();
+      }
+      if (queues[index].offer(slot)) {
+        slot = -1;
+        resumed(idle);
+        idle = 0;
+        failed = 0;
+      } else if (++failed >= queues.length) {
+        failed = 0;
+        stalled(++idle);
+      }
+      index = (index + 1) % queues.length;
+    }
+    resumed(idle);
+  }
+
+  // as in Dispatcher: the first round without a handoff starts a QueueStallEvent
+  private void stalled(int idle) {
+    if (idle == 1) {
+      stall = QueueStallEvent.begin(QueueStallEvent.DISPATCHER);
+    }
+    waitStrategy.idle(idle);
+  }
+
+  private void resumed(int idle) {
+    if (stall != null) {
+      stall.end(idle);
+      stall = null;
+    }
+  }
+
+  void setWaitStrategy(WaitStrategy waitStrategy) {
+    this.waitStrategy = waitStrategy;
+  }
+
+  void setStampPackets(boolean stampPackets) {
+    this.stampPackets = stampPackets;
+  }
+}
+
+class SlotHeadWorker implements Runnable {
+  PaddedPrimitiveNonVolatile<Boolean> done;
+  final PacketRing ring;
+  final IntRingQueue myQueue;
+  final HashTable<AddressData> table;
+  final IntRingQueue[] queues;
+  final WorkerStats stats;
+  int index = 0;
+  WaitStrategy waitStrategy = new BusySpinWait();
+
+  public SlotHeadWorker(PaddedPrimitiveNonVolatile<Boolean> done,
+  PacketRing ring,
+  IntRingQueue myQueue,
+  HashTable<AddressData> table,
+  IntRingQueue[] queues,
+  WorkerStats stats) {
+    this.done = done;
+    this.ring = ring;
+    this.myQueue = myQueue;
+    this.table = table;
+    this.queues = queues;
+    this.stats = stats;
+  }
+
+  @Override
+  public void run() {
+    int idle = 0;
+    while ( !done.value ) {
+      int slot = myQueue.poll();
+      if (slot < 0) {
+        waitStrategy.idle(++idle);
+        continue;
+      }
+      idle = 0;
+      StageLatency latency = stats.latency;
+      if (latency != null) {
+        long pickup = System.nanoTime();
+        ring.pickupNanos[slot] = pickup;
+        latency.record(StageLatency.QUEUE, ring.dispatchNanos[slot], pickup);
+      }
+      if (process(slot)) {
+        if (latency != null) {
+          long end = System.nanoTime();
+          latency.record(StageLatency.HEAD, ring.pickupNanos[slot], end);
+          latency.record(StageLatency.END_TO_END, ring.dispatchNanos[slot], end);
+        }
+        stats.released(1);
+        ring.release(slot);
+      }
+    }
+  }
+
+  void setWaitStrategy(WaitStrategy waitStrategy) {
+    this.waitStrategy = waitStrategy;
+    myQueue.setConsumerWaiter(waitStrategy);
+  }
+
+  private AddressData lookupOrAdd(int address) {
+    if (!table.contains(address)) {
+      table.add(address, new AddressData());
+    }
+    return table.get(address);
+  }
+
+  /*
+   * Returns true if the packet is finished here and false if it was passed on to a
+   * cache-miss worker, which then releases the slot.
+   */
+  private boolean process(int slot) {
+    if (ring.type[slot] == PacketRing.CONFIG) {
+      lookupOrAdd(ring.configAddress[slot]).updatePermission(ring.personaNonGrata[slot],
+       ring.acceptingRange[slot],
+        ring.addressBegin[slot],
+         ring.addressEnd[slot]);
+      stats.configApplied();
+      stats.processed();
+      return true;
+    }
+    int source = ring.source[slot];
+    lookupOrAdd(source);
+    AddressData destData = lookupOrAdd(ring.dest[slot]);
+    int decision = destData.lookupDecision(source);
+    if (decision == DecisionCache.MISS) {
+      stats.cacheMiss();
+      StageLatency latency = stats.latency;
+      if (latency != null) {
+        long now = System.nanoTime();
+        ring.missEnqueueNanos[slot] = now;
+        latency.record(StageLatency.HEAD, ring.pickupNanos[slot], now);
+      } else if (CacheMissEvent.TYPE.isEnabled()) {
+        ring.missEnqueueNanos[slot] = System.nanoTime();
+      }
+      ring.missEvent[slot] = CacheMissEvent.start();
+      boolean succeeded = false;
+      int failed = 0;
+      QueueStallEvent stall = null;
+      while (!succeeded && !done.value) {
+        succeeded = queues[index].offer(slot);
+        index = (index + 1) % queues.length;
+        if (!succeeded && ++failed % queues.length == 0) {
+          if (failed == queues.length) {
+            stall = QueueStallEvent.begin(QueueStallEvent.HEAD_WORKER);
+          }
+          waitStrategy.idle(failed / queues.length);
+        }
+      }
+      if (stall != null) {
+        stall.end(failed / queues.length);
+      }
+      return false;
+    }
+    stats.cacheHit();
+    if (decision == DecisionCache.ALLOW) {
+      stats.fingerprint(Fingerprint.getFingerprint(ring.iterations[slot], ring.seed[slot]));
+    }
+    stats.processed();
+    return true;
+  }
+}
+
+class SlotCacheMissWorker implements Runnable {
+  PaddedPrimitiveNonVolatile<Boolean> done;
+  final PacketRing ring;
+  final IntRingQueue myQueue;
+  final HashTable<AddressData> table;
+  final WorkerStats stats;
+  WaitStrategy waitStrategy = new BusySpinWait();
+
+  public SlotCacheMissWorker(PaddedPrimitiveNonVolatile<Boolean> done,
+  PacketRing ring,
+  IntRingQueue myQueue,
+  HashTable<AddressData> table,
+  WorkerStats stats) {
+    this.done = done;
+    this.ring = ring;
+    this.myQueue = myQueue;
+    this.table = table;
+    this.stats = stats;
+  }
+
+  @Override
+  public void run() {
+    int idle = 0;
+    while ( !done.value ) {
+      int slot = myQueue.poll();
+      if (slot < 0) {
+        waitStrategy.idle(++idle);
         continue;
       }
+      idle = 0;
+      StageLatency latency = stats.latency;
+      CacheMissEvent event = ring.missEvent[slot];
+      long start = 0;
+      if (latency != null) {
+        start = System.nanoTime();
+        latency.record(StageLatency.MISS_QUEUE, ring.missEnqueueNanos[slot], start);
+      } else if (event != null) {
+        start = System.nanoTime();
+      }
+      int source = ring.source[slot];
+      AddressData sourceData = table.get(source);
+      AddressData destData = table.get(ring.dest[slot]);
+      boolean allowed = destData.decide(source, sourceData);
+      if (allowed) {
+        stats.fingerprint(Fingerprint.getFingerprint(ring.iterations[slot], ring.seed[slot]));
+      }
+      stats.processed();
+      if (latency != null) {
+        long end = System.nanoTime();
+        latency.record(StageLatency.CACHE_MISS, start, end);
+        latency.record(StageLatency.END_TO_END, ring.dispatchNanos[slot], end);
+      }
+      if (event != null) {
+        ring.missEvent[slot] = null;
+        if (event.shouldCommit()) {
+          event.allowed = allowed;
+          CacheMissEvent.fill(event, source, ring.dest[slot], ring.missEnqueueNanos[slot], start);
+          event.commit();
+        }
+      }
+      stats.released(1);
+      ring.release(slot);
     }
-  } 
+  }
+
+  void setWaitStrategy(WaitStrategy waitStrategy) {
+    this.waitStrategy = waitStrategy;
+    myQueue.setConsumerWaiter(waitStrategy);
+  }
 }